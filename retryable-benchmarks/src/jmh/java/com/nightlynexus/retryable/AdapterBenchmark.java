@@ -0,0 +1,47 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retrofit2.CallAdapter;
+
+/**
+ * Measures creating the call adapter of a service method, which Retrofit does once per method,
+ * and adapting a call with it, which Retrofit does for every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdapterBenchmark {
+  private final InProcessRetrofit retrofit = new InProcessRetrofit(new RetryableCalls());
+  private Type returnType;
+  private Annotation[] annotations;
+
+  @Setup public final void setUp() throws NoSuchMethodException {
+    Method method = InProcessRetrofit.Service.class.getMethod("get");
+    returnType = method.getGenericReturnType();
+    annotations = method.getAnnotations();
+  }
+
+  @Benchmark public final CallAdapter<?, ?> createAdapter() {
+    return retrofit.retryableCalls.getFactory().get(returnType, annotations, retrofit.retrofit);
+  }
+
+  @Benchmark public final RetryableCall<String> adaptCall() {
+    return retrofit.service.get();
+  }
+}
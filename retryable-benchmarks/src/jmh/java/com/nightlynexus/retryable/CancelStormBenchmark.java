@@ -0,0 +1,48 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures canceling every parked call at once, as when a screen full of requests goes away
+ * during an outage. Each thread cancels its own calls from the shared {@link RetryableCalls}, so
+ * run with increasing {@code -PjmhThreads} to see how cancellation scales with contention.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 100)
+@Measurement(iterations = 100)
+@Fork(1)
+public class CancelStormBenchmark {
+  private static final int CALLS_PER_THREAD = 1000;
+
+  @State(Scope.Benchmark)
+  public static class Backend {
+    final InProcessRetrofit retrofit = new InProcessRetrofit(new RetryableCalls());
+  }
+
+  @State(Scope.Thread)
+  public static class Calls {
+    RetryableCall<?>[] calls;
+
+    @Setup(Level.Invocation) public final void setUp(Backend backend) {
+      calls = backend.retrofit.park(CALLS_PER_THREAD);
+    }
+  }
+
+  @Benchmark public final void cancelAll(Calls calls) {
+    for (RetryableCall<?> call : calls.calls) {
+      call.cancel();
+    }
+  }
+}
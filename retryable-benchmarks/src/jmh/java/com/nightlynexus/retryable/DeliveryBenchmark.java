@@ -0,0 +1,82 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import retrofit2.Response;
+
+/**
+ * Measures the cost of delivering a response to a {@link RetryableCallback}, with and without a
+ * callback executor, and end to end through Retrofit. Run with {@code -prof gc} to see the bytes
+ * allocated per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeliveryBenchmark {
+  /**
+   * Runs tasks right away. Like a real executor's queue, it holds on to the last one, so that
+   * escape analysis cannot remove the task's allocation.
+   */
+  static final class DirectExecutor implements Executor {
+    Runnable last;
+
+    @Override public void execute(Runnable command) {
+      last = command;
+      command.run();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Delivery {
+    final RetryableCalls retryableCalls = new RetryableCalls();
+    final DirectExecutor executor = new DirectExecutor();
+    final InProcessRetrofit retrofit = new InProcessRetrofit(retryableCalls);
+    final FakeCall call = new FakeCall(new Request.Builder().url("https://example.com/").build(),
+        Response.<Object>success("Hi"));
+    Blackhole blackhole;
+
+    final RetryableCallback<Object> callback = new RetryableCallback<Object>() {
+      @Override public void onResponse(RetryableCall<Object> call, Response<Object> response) {
+        blackhole.consume(response);
+      }
+
+      @Override public void onFailure(RetryableCall<Object> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<Object> call, IOException e) {
+        throw new AssertionError(e);
+      }
+    };
+  }
+
+  @Benchmark public final void deliver(Delivery delivery, Blackhole blackhole) {
+    delivery.blackhole = blackhole;
+    new RealRetryableCall(delivery.call, null, delivery.retryableCalls,
+        delivery.retryableCalls.defaultPolicy, null).enqueue(delivery.callback);
+  }
+
+  @Benchmark public final void deliverOnExecutor(Delivery delivery, Blackhole blackhole) {
+    delivery.blackhole = blackhole;
+    new RealRetryableCall(delivery.call, delivery.executor, delivery.retryableCalls,
+        delivery.retryableCalls.defaultPolicy, null).enqueue(delivery.callback);
+  }
+
+  @Benchmark public final void deliverThroughRetrofit(Delivery delivery) {
+    delivery.retrofit.service.get().enqueue(InProcessRetrofit.IGNORE);
+  }
+}
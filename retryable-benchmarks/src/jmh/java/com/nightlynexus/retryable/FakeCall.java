@@ -0,0 +1,52 @@
+package com.nightlynexus.retryable;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * A call that is never sent. With a response, it completes as soon as it is enqueued, on the
+ * calling thread; without one, it is enough for benchmarks that only park and unpark.
+ */
+final class FakeCall implements Call<Object> {
+  private final Request request;
+  private final Response<Object> response;
+
+  FakeCall(Request request) {
+    this(request, null);
+  }
+
+  FakeCall(Request request, Response<Object> response) {
+    this.request = request;
+    this.response = response;
+  }
+
+  @Override public Response<Object> execute() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void enqueue(Callback<Object> callback) {
+    if (response == null) throw new UnsupportedOperationException();
+    callback.onResponse(this, response);
+  }
+
+  @Override public boolean isExecuted() {
+    return false;
+  }
+
+  @Override public void cancel() {
+  }
+
+  @Override public boolean isCanceled() {
+    return false;
+  }
+
+  @Override public FakeCall clone() {
+    return new FakeCall(request, response);
+  }
+
+  @Override public Request request() {
+    return request;
+  }
+}
@@ -0,0 +1,83 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Stands in for OkHttp so that benchmarks run offline and without I/O. Calls complete on the
+ * calling thread as soon as they are enqueued: with a small response, or, while the backend is
+ * {@linkplain #down down}, with an {@link IOException}.
+ */
+final class InProcessCallFactory implements Call.Factory {
+  private static final MediaType TEXT = MediaType.parse("text/plain");
+  private static final IOException UNREACHABLE = new IOException("unreachable");
+
+  volatile boolean down;
+
+  @Override public Call newCall(Request request) {
+    return new InProcessCall(request);
+  }
+
+  final class InProcessCall implements Call {
+    private final Request request;
+    private volatile boolean executed;
+    private volatile boolean canceled;
+
+    InProcessCall(Request request) {
+      this.request = request;
+    }
+
+    @Override public Request request() {
+      return request;
+    }
+
+    @Override public Response execute() throws IOException {
+      executed = true;
+      if (down || canceled) throw UNREACHABLE;
+      return new Response.Builder()
+          .request(request)
+          .protocol(Protocol.HTTP_1_1)
+          .code(200)
+          .message("OK")
+          .body(ResponseBody.create(TEXT, "Hi"))
+          .build();
+    }
+
+    @Override public void enqueue(Callback callback) {
+      Response response;
+      try {
+        response = execute();
+      } catch (IOException e) {
+        callback.onFailure(this, e);
+        return;
+      }
+      try {
+        callback.onResponse(this, response);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override public void cancel() {
+      canceled = true;
+    }
+
+    @Override public boolean isExecuted() {
+      return executed;
+    }
+
+    @Override public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override public InProcessCall clone() {
+      return new InProcessCall(request);
+    }
+  }
+}
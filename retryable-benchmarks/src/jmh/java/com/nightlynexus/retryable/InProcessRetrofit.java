@@ -0,0 +1,67 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+/** A Retrofit service whose calls are retried by a {@link RetryableCalls} and sent in-process. */
+final class InProcessRetrofit {
+  interface Service {
+    @GET("/") RetryableCall<String> get();
+  }
+
+  static final RetryableCallback<String> IGNORE = new RetryableCallback<String>() {
+    @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+    }
+
+    @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+    }
+
+    @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+    }
+  };
+
+  private static final Converter.Factory TO_STRING = new Converter.Factory() {
+    @Override public Converter<ResponseBody, ?> responseBodyConverter(Type type,
+        Annotation[] annotations, Retrofit retrofit) {
+      return new Converter<ResponseBody, String>() {
+        @Override public String convert(ResponseBody value) throws IOException {
+          return value.string();
+        }
+      };
+    }
+  };
+
+  final InProcessCallFactory callFactory = new InProcessCallFactory();
+  final RetryableCalls retryableCalls;
+  final Retrofit retrofit;
+  final Service service;
+
+  InProcessRetrofit(RetryableCalls retryableCalls) {
+    this.retryableCalls = retryableCalls;
+    retrofit = new Retrofit.Builder()
+        .baseUrl("https://example.com/")
+        .callFactory(callFactory)
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(TO_STRING)
+        .build();
+    service = retrofit.create(Service.class);
+  }
+
+  /** Enqueues {@code count} calls while the backend is down, leaving them all parked. */
+  RetryableCall<?>[] park(int count) {
+    callFactory.down = true;
+    RetryableCall<?>[] calls = new RetryableCall<?>[count];
+    for (int i = 0; i < count; i++) {
+      RetryableCall<String> call = service.get();
+      call.enqueue(IGNORE);
+      calls[i] = call;
+    }
+    return calls;
+  }
+}
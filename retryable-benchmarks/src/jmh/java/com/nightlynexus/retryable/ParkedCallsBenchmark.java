@@ -0,0 +1,88 @@
+package com.nightlynexus.retryable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retrofit2.Callback;
+
+/**
+ * Measures park/unpark throughput of {@link ParkedCalls} against the single-lock
+ * {@link LinkedHashMap} registry it replaced. Run with increasing {@code -PjmhThreads} to see how
+ * each scales with contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParkedCallsBenchmark {
+  private static final int CALLS_PER_THREAD = 64;
+
+  @State(Scope.Benchmark)
+  public static class Registries {
+    final RetryableCalls retryableCalls = new RetryableCalls();
+    final ParkedCalls parkedCalls = new ParkedCalls();
+    final LockedParkedCalls lockedParkedCalls = new LockedParkedCalls();
+  }
+
+  @State(Scope.Thread)
+  public static class Calls {
+    final RealRetryableCall[] calls = new RealRetryableCall[CALLS_PER_THREAD];
+    int index;
+
+    @Setup public final void setUp(Registries registries) {
+      Request request = new Request.Builder().url("https://example.com/").build();
+      for (int i = 0; i < calls.length; i++) {
+        calls[i] = new RealRetryableCall(new FakeCall(request), null,
+            registries.retryableCalls, registries.retryableCalls.defaultPolicy, null);
+      }
+    }
+
+    final RealRetryableCall next() {
+      RealRetryableCall call = calls[index];
+      index = (index + 1) % calls.length;
+      return call;
+    }
+  }
+
+  @Benchmark public final void concurrentAddRemove(Registries registries, Calls calls) {
+    RealRetryableCall call = calls.next();
+    registries.parkedCalls.add(call, null, null, 0L);
+    registries.parkedCalls.remove(call);
+  }
+
+  @Benchmark public final void lockedAddRemove(Registries registries, Calls calls) {
+    RealRetryableCall call = calls.next();
+    registries.lockedParkedCalls.add(call, null);
+    registries.lockedParkedCalls.remove(call);
+  }
+
+  /** The registry as it was before {@link ParkedCalls}: one monitor around a linked map. */
+  static final class LockedParkedCalls {
+    private final Map<RealRetryableCall, Callback<Object>> failedCalls = new LinkedHashMap<>();
+    private final Object lock = new Object();
+
+    void add(RealRetryableCall call, Callback<Object> callback) {
+      synchronized (lock) {
+        failedCalls.put(call, callback);
+      }
+    }
+
+    void remove(RealRetryableCall call) {
+      synchronized (lock) {
+        failedCalls.remove(call);
+      }
+    }
+  }
+}
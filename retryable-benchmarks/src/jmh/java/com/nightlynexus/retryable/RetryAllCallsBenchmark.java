@@ -0,0 +1,49 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RetryableCalls#retryAllCalls()} with {@code parkedCalls} parked. The backend
+ * stays down, so every replayed call fails and is parked again, ready for the next invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetryAllCallsBenchmark {
+  @Param({"10", "1000", "100000"})
+  int parkedCalls;
+
+  private InProcessRetrofit unlimited;
+  private InProcessRetrofit limited;
+
+  @Setup public final void setUp() {
+    unlimited = new InProcessRetrofit(new RetryableCalls());
+    unlimited.park(parkedCalls);
+    limited = new InProcessRetrofit(new RetryableCalls.Builder()
+        .maxConcurrentReplays(64)
+        .build());
+    limited.park(parkedCalls);
+  }
+
+  @Benchmark public final void retryAllCalls() {
+    unlimited.retryableCalls.retryAllCalls();
+  }
+
+  @Benchmark public final void retryAllCallsWithConcurrencyLimit() {
+    limited.retryableCalls.retryAllCalls();
+  }
+}
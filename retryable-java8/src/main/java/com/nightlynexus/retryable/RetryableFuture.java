@@ -0,0 +1,30 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link CompletableFuture} completed by a {@link RetryableCall}. A call that fails but can be
+ * retried is parked as usual, and the future stays incomplete until the call is delivered or
+ * fails for good. Canceling the future cancels the call.
+ */
+public abstract class RetryableFuture<T> extends CompletableFuture<T> {
+  private final RetryableCall<?> call;
+
+  RetryableFuture(RetryableCall<?> call) {
+    this.call = call;
+  }
+
+  /**
+   * Returns the call that completes this future, for matching it in
+   * {@link RetryableCalls#retryCalls(RetryableCalls.Filter)}.
+   */
+  public final RetryableCall<?> call() {
+    return call;
+  }
+
+  @Override public final boolean cancel(boolean mayInterruptIfRunning) {
+    boolean canceled = super.cancel(mayInterruptIfRunning);
+    call.cancel();
+    return canceled;
+  }
+}
@@ -0,0 +1,192 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * A {@linkplain CallAdapter.Factory call adapter factory} for service methods that return
+ * {@link CompletableFuture} or {@link RetryableFuture}. Calls are retried by a
+ * {@link RetryableCalls}, like the calls of methods that return {@link RetryableCall}.
+ *
+ * <p>Adding this factory to an instance of {@link Retrofit} allows you to return a future
+ * of either a body or a {@link Response}:
+ * <pre><code>
+ * interface MyService {
+ *   &#64;GET("user/me")
+ *   CompletableFuture&lt;User&gt; getUser();
+ *   &#64;GET("user/me")
+ *   RetryableFuture&lt;Response&lt;User&gt;&gt; getUserWithResponse();
+ * }
+ * </code></pre>
+ * A future of a body completes exceptionally with an {@link HttpException} for a non-2XX
+ * response. A future of a {@link Response} completes with every response.
+ */
+public final class RetryableFutureCallAdapterFactory extends CallAdapter.Factory {
+  public static RetryableFutureCallAdapterFactory create(RetryableCalls retryableCalls) {
+    if (retryableCalls == null) throw new NullPointerException("retryableCalls == null");
+    return new RetryableFutureCallAdapterFactory(retryableCalls.getFactory());
+  }
+
+  private final CallAdapter.Factory retryingFactory;
+
+  private RetryableFutureCallAdapterFactory(CallAdapter.Factory retryingFactory) {
+    this.retryingFactory = retryingFactory;
+  }
+
+  @Override public CallAdapter<?, ?> get(Type returnType, Annotation[] annotations,
+      Retrofit retrofit) {
+    Class<?> rawType = getRawType(returnType);
+    if (rawType != CompletableFuture.class && rawType != RetryableFuture.class) return null;
+    String name = rawType.getSimpleName();
+    if (!(returnType instanceof ParameterizedType)) {
+      throw new IllegalArgumentException(name + " return type must be parameterized as "
+          + name + "<Foo> or " + name + "<? extends Foo>");
+    }
+    Type innerType = getParameterUpperBound(0, (ParameterizedType) returnType);
+    boolean wantsResponse = getRawType(innerType) == Response.class;
+    if (wantsResponse) {
+      if (!(innerType instanceof ParameterizedType)) {
+        throw new IllegalArgumentException("Response must be parameterized as "
+            + "Response<Foo> or Response<? extends Foo>");
+      }
+      innerType = getParameterUpperBound(0, (ParameterizedType) innerType);
+    }
+
+    @SuppressWarnings("unchecked") // The retrying factory adapts to RetryableCall<innerType>.
+    CallAdapter<Object, RetryableCall<Object>> callAdapter =
+        (CallAdapter<Object, RetryableCall<Object>>) retryingFactory.get(
+            new RetryableCallType(innerType), annotations, retrofit);
+    return wantsResponse
+        ? new ResponseCallAdapter<>(callAdapter)
+        : new BodyCallAdapter<>(callAdapter);
+  }
+
+  private static final class BodyCallAdapter<R> implements CallAdapter<R, RetryableFuture<R>> {
+    private final CallAdapter<R, RetryableCall<R>> callAdapter;
+
+    BodyCallAdapter(CallAdapter<R, RetryableCall<R>> callAdapter) {
+      this.callAdapter = callAdapter;
+    }
+
+    @Override public Type responseType() {
+      return callAdapter.responseType();
+    }
+
+    @Override public RetryableFuture<R> adapt(Call<R> call) {
+      RetryableCall<R> retryableCall = callAdapter.adapt(call);
+      BodyFuture<R> future = new BodyFuture<>(retryableCall);
+      retryableCall.enqueue(future);
+      return future;
+    }
+  }
+
+  /** Completes with the body of the call's response. The future is the call's only callback. */
+  private static final class BodyFuture<R> extends RetryableFuture<R>
+      implements RetryableCallback<R> {
+    BodyFuture(RetryableCall<R> call) {
+      super(call);
+    }
+
+    @Override public void onResponse(RetryableCall<R> call, Response<R> response) {
+      if (response.isSuccessful()) {
+        complete(response.body());
+      } else {
+        completeExceptionally(new HttpException(response));
+      }
+    }
+
+    @Override public void onFailure(RetryableCall<R> call, Throwable t) {
+      completeExceptionally(t);
+    }
+
+    @Override public void onFailureButCanRetry(RetryableCall<R> call, IOException e) {
+      // Parked. The future completes when the call is retried.
+    }
+  }
+
+  private static final class ResponseCallAdapter<R>
+      implements CallAdapter<R, RetryableFuture<Response<R>>> {
+    private final CallAdapter<R, RetryableCall<R>> callAdapter;
+
+    ResponseCallAdapter(CallAdapter<R, RetryableCall<R>> callAdapter) {
+      this.callAdapter = callAdapter;
+    }
+
+    @Override public Type responseType() {
+      return callAdapter.responseType();
+    }
+
+    @Override public RetryableFuture<Response<R>> adapt(Call<R> call) {
+      RetryableCall<R> retryableCall = callAdapter.adapt(call);
+      ResponseFuture<R> future = new ResponseFuture<>(retryableCall);
+      retryableCall.enqueue(future);
+      return future;
+    }
+  }
+
+  /** Completes with the call's response. The future is the call's only callback. */
+  private static final class ResponseFuture<R> extends RetryableFuture<Response<R>>
+      implements RetryableCallback<R> {
+    ResponseFuture(RetryableCall<R> call) {
+      super(call);
+    }
+
+    @Override public void onResponse(RetryableCall<R> call, Response<R> response) {
+      complete(response);
+    }
+
+    @Override public void onFailure(RetryableCall<R> call, Throwable t) {
+      completeExceptionally(t);
+    }
+
+    @Override public void onFailureButCanRetry(RetryableCall<R> call, IOException e) {
+      // Parked. The future completes when the call is retried.
+    }
+  }
+
+  /** {@code RetryableCall<responseType>}, to look up the retrying adapter with. */
+  private static final class RetryableCallType implements ParameterizedType {
+    private final Type responseType;
+
+    RetryableCallType(Type responseType) {
+      this.responseType = responseType;
+    }
+
+    @Override public Type[] getActualTypeArguments() {
+      return new Type[] {responseType};
+    }
+
+    @Override public Type getRawType() {
+      return RetryableCall.class;
+    }
+
+    @Override public Type getOwnerType() {
+      return null;
+    }
+
+    @Override public boolean equals(Object other) {
+      if (!(other instanceof ParameterizedType)) return false;
+      ParameterizedType that = (ParameterizedType) other;
+      return that.getRawType() == RetryableCall.class
+          && that.getOwnerType() == null
+          && Arrays.equals(that.getActualTypeArguments(), getActualTypeArguments());
+    }
+
+    @Override public int hashCode() {
+      return responseType.hashCode() ^ RetryableCall.class.hashCode();
+    }
+
+    @Override public String toString() {
+      return RetryableCall.class.getName() + "<" + responseType.getTypeName() + ">";
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public final class RetryableFutureCallAdapterFactoryTest {
+  private interface Service {
+    @GET("/") CompletableFuture<String> body();
+    @GET("/") RetryableFuture<Response<String>> response();
+  }
+
+  private final MockWebServer server = new MockWebServer();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private Service service;
+
+  @Before public void setUp() {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .build();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(RetryableFutureCallAdapterFactory.create(retryableCalls))
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    service = retrofit.create(Service.class);
+  }
+
+  @After public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test public void bodyCompletesAfterRetry() throws Exception {
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    assertThat(service.body().get(5, SECONDS)).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void bodyFailsWithHttpException() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+
+    try {
+      service.body().get(5, SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(HttpException.class);
+      assertThat(((HttpException) e.getCause()).code()).isEqualTo(404);
+    }
+  }
+
+  @Test public void responseCompletesWithUnsuccessfulResponse() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+
+    Response<String> response = service.response().get(5, SECONDS);
+    assertThat(response.code()).isEqualTo(404);
+  }
+
+  @Test public void cancelingFutureCancelsCall() {
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+    RetryableFuture<Response<String>> future = service.response();
+    assertThat(future.cancel(true)).isTrue();
+    assertThat(future.call().isCanceled()).isTrue();
+  }
+}
@@ -0,0 +1,190 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import okhttp3.Request;
+import retrofit2.Response;
+
+/**
+ * A {@link RetryEventListener} that emits Java Flight Recorder events, so that retries can be
+ * correlated with the GC, thread and socket events of the same recording.
+ * <pre><code>
+ * RetryableCalls retryableCalls = new RetryableCalls.Builder()
+ *     .eventListener(new JfrRetryEventListener())
+ *     .build();
+ * </code></pre>
+ * The events are enabled, and given thresholds, in the recording's settings like any other:
+ * <ul>
+ *   <li>{@value #ATTEMPT}: an attempt, from sent until it is answered or fails.
+ *   <li>{@value #PARKED}: a call waiting to be retried, from parked until it is replayed, answered
+ *   by a coalesced replay, given up on, or cleared.
+ *   <li>{@value #REPLAYED}: a parked call sent again.
+ *   <li>{@value #DELIVERED}: the response or failure a call completes with.
+ * </ul>
+ * Attempts shorter than 20 ms are left out unless the settings lower the threshold, like socket
+ * reads are. While no recording enables an event, this listener checks a flag and returns without
+ * allocating.
+ */
+public final class JfrRetryEventListener extends RetryEventListener {
+  public static final String ATTEMPT = "com.nightlynexus.retryable.Attempt";
+  public static final String PARKED = "com.nightlynexus.retryable.Parked";
+  public static final String REPLAYED = "com.nightlynexus.retryable.Replayed";
+  public static final String DELIVERED = "com.nightlynexus.retryable.Delivered";
+
+  private static final EventType ATTEMPT_TYPE = EventType.getEventType(AttemptEvent.class);
+  private static final EventType PARKED_TYPE = EventType.getEventType(ParkedEvent.class);
+  private static final EventType REPLAYED_TYPE = EventType.getEventType(ReplayedEvent.class);
+  private static final EventType DELIVERED_TYPE = EventType.getEventType(DeliveredEvent.class);
+
+  // Durational events that have begun, by call. Entries are only made while their events are
+  // enabled, and are removed when the attempt ends or the call stops being parked.
+  private final ConcurrentHashMap<RetryableCall<?>, AttemptEvent> attemptEvents =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<RetryableCall<?>, ParkedEvent> parkedEvents =
+      new ConcurrentHashMap<>();
+
+  @Override public void attemptStart(RetryableCall<?> call, int attempt) {
+    if (!ATTEMPT_TYPE.isEnabled()) return;
+    AttemptEvent event = new AttemptEvent();
+    Request request = call.request();
+    event.host = request.url().host();
+    event.method = request.method();
+    event.attempt = attempt;
+    event.begin();
+    attemptEvents.put(call, event);
+  }
+
+  @Override public void attemptEnd(RetryableCall<?> call, int attempt, long tookNanos) {
+    endAttempt(call, null);
+  }
+
+  @Override public void attemptFailed(RetryableCall<?> call, int attempt, Throwable t,
+      long tookNanos) {
+    endAttempt(call, t);
+  }
+
+  private void endAttempt(RetryableCall<?> call, Throwable failure) {
+    if (attemptEvents.isEmpty()) return;
+    AttemptEvent event = attemptEvents.remove(call);
+    if (event == null) return;
+    event.end();
+    if (!event.shouldCommit()) return;
+    if (failure != null) event.failure = failure.toString();
+    event.commit();
+  }
+
+  @Override public void callParked(RetryableCall<?> call, IOException failure) {
+    if (!PARKED_TYPE.isEnabled()) return;
+    ParkedEvent event = new ParkedEvent();
+    Request request = call.request();
+    event.host = request.url().host();
+    event.method = request.method();
+    event.failure = failure.toString();
+    event.begin();
+    // A call that is parked again after a short-circuited replay has been waiting all along.
+    parkedEvents.putIfAbsent(call, event);
+  }
+
+  @Override public void callReplayed(RetryableCall<?> call) {
+    endParked(call);
+    if (!REPLAYED_TYPE.isEnabled()) return;
+    ReplayedEvent event = new ReplayedEvent();
+    Request request = call.request();
+    event.host = request.url().host();
+    event.method = request.method();
+    event.commit();
+  }
+
+  private void endParked(RetryableCall<?> call) {
+    if (parkedEvents.isEmpty()) return;
+    ParkedEvent event = parkedEvents.remove(call);
+    if (event == null) return;
+    event.commit();
+  }
+
+  @Override public void callEnd(RetryableCall<?> call, int attempts, Response<?> response) {
+    endParked(call);
+    if (!DELIVERED_TYPE.isEnabled()) return;
+    DeliveredEvent event = new DeliveredEvent();
+    Request request = call.request();
+    event.host = request.url().host();
+    event.method = request.method();
+    event.attempts = attempts;
+    event.code = response.code();
+    event.commit();
+  }
+
+  @Override public void callGaveUp(RetryableCall<?> call, Throwable t) {
+    endParked(call);
+    if (!DELIVERED_TYPE.isEnabled()) return;
+    DeliveredEvent event = new DeliveredEvent();
+    Request request = call.request();
+    event.host = request.url().host();
+    event.method = request.method();
+    event.failure = t.toString();
+    event.commit();
+  }
+
+  @Override public void callCleared(RetryableCall<?> call) {
+    endParked(call);
+  }
+
+  @Override public void callCanceled(RetryableCall<?> call) {
+    endParked(call);
+  }
+
+  @Name(ATTEMPT)
+  @Label("Retryable Attempt")
+  @Category({"Retrofit", "Retryable"})
+  @StackTrace(false)
+  @Description("An attempt of a retryable call, from sent until it is answered or fails")
+  @Threshold("20 ms")
+  static final class AttemptEvent extends Event {
+    @Label("Host") String host;
+    @Label("Method") String method;
+    @Label("Attempt") int attempt;
+    @Label("Failure") String failure;
+  }
+
+  @Name(PARKED)
+  @Label("Retryable Call Parked")
+  @Category({"Retrofit", "Retryable"})
+  @StackTrace(false)
+  @Description("A retryable call waiting to be retried")
+  static final class ParkedEvent extends Event {
+    @Label("Host") String host;
+    @Label("Method") String method;
+    @Label("Failure") String failure;
+  }
+
+  @Name(REPLAYED)
+  @Label("Retryable Call Replayed")
+  @Category({"Retrofit", "Retryable"})
+  @StackTrace(false)
+  @Description("A parked retryable call sent again")
+  static final class ReplayedEvent extends Event {
+    @Label("Host") String host;
+    @Label("Method") String method;
+  }
+
+  @Name(DELIVERED)
+  @Label("Retryable Call Delivered")
+  @Category({"Retrofit", "Retryable"})
+  @StackTrace(false)
+  @Description("The response or failure a retryable call completes with")
+  static final class DeliveredEvent extends Event {
+    @Label("Host") String host;
+    @Label("Method") String method;
+    @Label("Attempts") @Description("0 if the call failed") int attempts;
+    @Label("Status Code") @Description("0 if the call failed") int code;
+    @Label("Failure") String failure;
+  }
+}
@@ -0,0 +1,204 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@RunWith(JUnit4.class)
+public final class JfrRetryEventListenerTest {
+  private interface Service {
+    @GET("/") RetryableCall<String> get();
+  }
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private final MockWebServer server = new MockWebServer();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private Service service;
+
+  @Before public void setUp() {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .retryOnStatus(503)
+        .eventListener(new JfrRetryEventListener())
+        .build();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    service = retrofit.create(Service.class);
+  }
+
+  @After public void tearDown() throws IOException {
+    scheduler.shutdown();
+    server.shutdown();
+  }
+
+  @Test public void recordsRetries() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(JfrRetryEventListener.ATTEMPT).withThreshold(Duration.ZERO);
+      recording.enable(JfrRetryEventListener.PARKED);
+      recording.enable(JfrRetryEventListener.REPLAYED);
+      recording.enable(JfrRetryEventListener.DELIVERED);
+      recording.start();
+      assertThat(send().body()).isEqualTo("Hi");
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    assertThat(names(events)).containsExactly(JfrRetryEventListener.ATTEMPT,
+        JfrRetryEventListener.PARKED, JfrRetryEventListener.REPLAYED,
+        JfrRetryEventListener.ATTEMPT, JfrRetryEventListener.DELIVERED).inOrder();
+    String host = server.url("/").host();
+    for (RecordedEvent event : events) {
+      assertThat(event.getString("host")).isEqualTo(host);
+      assertThat(event.getString("method")).isEqualTo("GET");
+    }
+    RecordedEvent delivered = only(events, JfrRetryEventListener.DELIVERED);
+    assertThat(delivered.getInt("attempts")).isEqualTo(2);
+    assertThat(delivered.getInt("code")).isEqualTo(200);
+    RecordedEvent parked = only(events, JfrRetryEventListener.PARKED);
+    assertThat(parked.getString("failure")).contains("503");
+    assertThat(parked.getDuration().toNanos()).isGreaterThan(0L);
+  }
+
+  @Test public void clearingEndsParkedEvent() throws Exception {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .retryOnStatus(503)
+        .eventListener(new JfrRetryEventListener())
+        .build();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    server.enqueue(new MockResponse().setResponseCode(503));
+
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(JfrRetryEventListener.PARKED);
+      recording.start();
+      final CountDownLatch parked = new CountDownLatch(1);
+      retrofit.create(Service.class).get().enqueue(new RetryableCallback<String>() {
+        @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+          throw new AssertionError();
+        }
+
+        @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+          throw new AssertionError(t);
+        }
+
+        @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+          parked.countDown();
+        }
+      });
+      assertThat(parked.await(10, SECONDS)).isTrue();
+      retryableCalls.clearCalls();
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    assertThat(names(events)).containsExactly(JfrRetryEventListener.PARKED);
+  }
+
+  @Test public void recordsNothingWhenDisabled() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.disable(JfrRetryEventListener.ATTEMPT);
+      recording.disable(JfrRetryEventListener.PARKED);
+      recording.disable(JfrRetryEventListener.REPLAYED);
+      recording.disable(JfrRetryEventListener.DELIVERED);
+      recording.start();
+      assertThat(send().body()).isEqualTo("Hi");
+      recording.stop();
+      events = readEvents(recording);
+    }
+
+    assertThat(names(events)).isEmpty();
+  }
+
+  private Response<String> send() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final List<Response<String>> responses = new ArrayList<>();
+    service.get().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        responses.add(response);
+        latch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+      }
+    });
+    assertThat(latch.await(10, SECONDS)).isTrue();
+    return responses.get(0);
+  }
+
+  private List<RecordedEvent> readEvents(Recording recording) throws IOException {
+    Path file = temporaryFolder.newFile("retries.jfr").toPath();
+    recording.dump(file);
+    List<RecordedEvent> events = new ArrayList<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+      if (event.getEventType().getName().startsWith("com.nightlynexus.retryable.")) {
+        events.add(event);
+      }
+    }
+    events.sort((a, b) -> a.getEndTime().compareTo(b.getEndTime()));
+    return events;
+  }
+
+  private static List<String> names(List<RecordedEvent> events) {
+    List<String> names = new ArrayList<>();
+    for (RecordedEvent event : events) {
+      names.add(event.getEventType().getName());
+    }
+    return names;
+  }
+
+  private static RecordedEvent only(List<RecordedEvent> events, String name) {
+    RecordedEvent only = null;
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) {
+        assertThat(only).isNull();
+        only = event;
+      }
+    }
+    assertThat(only).isNotNull();
+    return only;
+  }
+}
@@ -0,0 +1,219 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import retrofit2.Call;
+import retrofit2.CallAdapter;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * A {@linkplain CallAdapter.Factory call adapter factory} for service methods that return a
+ * Reactive Streams {@link Publisher}. Calls are retried by a {@link RetryableCalls}, like the
+ * calls of methods that return {@link RetryableCall}.
+ *
+ * <p>Adding this factory to an instance of {@link Retrofit} allows you to return a publisher of
+ * either a body or a {@link Response}:
+ * <pre><code>
+ * interface MyService {
+ *   &#64;GET("user/me")
+ *   Publisher&lt;User&gt; getUser();
+ *   &#64;GET("user/me")
+ *   Publisher&lt;Response&lt;User&gt;&gt; getUserWithResponse();
+ * }
+ * </code></pre>
+ * Each subscription sends its own call, and only once the subscriber has requested the result.
+ * Until then, the call is neither sent nor parked, so it takes no part in replays. A publisher of a
+ * body signals an {@link HttpException} for a non-2XX response. A publisher of a {@link Response}
+ * emits every response. Canceling the subscription cancels the call.
+ */
+public final class RetryablePublisherCallAdapterFactory extends CallAdapter.Factory {
+  public static RetryablePublisherCallAdapterFactory create(RetryableCalls retryableCalls) {
+    if (retryableCalls == null) throw new NullPointerException("retryableCalls == null");
+    return new RetryablePublisherCallAdapterFactory(retryableCalls.getFactory());
+  }
+
+  private final CallAdapter.Factory retryingFactory;
+
+  private RetryablePublisherCallAdapterFactory(CallAdapter.Factory retryingFactory) {
+    this.retryingFactory = retryingFactory;
+  }
+
+  @Override public CallAdapter<?, ?> get(Type returnType, Annotation[] annotations,
+      Retrofit retrofit) {
+    if (getRawType(returnType) != Publisher.class) return null;
+    if (!(returnType instanceof ParameterizedType)) {
+      throw new IllegalArgumentException("Publisher return type must be parameterized as "
+          + "Publisher<Foo> or Publisher<? extends Foo>");
+    }
+    Type innerType = getParameterUpperBound(0, (ParameterizedType) returnType);
+    boolean wantsResponse = getRawType(innerType) == Response.class;
+    if (wantsResponse) {
+      if (!(innerType instanceof ParameterizedType)) {
+        throw new IllegalArgumentException("Response must be parameterized as "
+            + "Response<Foo> or Response<? extends Foo>");
+      }
+      innerType = getParameterUpperBound(0, (ParameterizedType) innerType);
+    }
+
+    @SuppressWarnings("unchecked") // The retrying factory adapts to RetryableCall<innerType>.
+    CallAdapter<Object, RetryableCall<Object>> callAdapter =
+        (CallAdapter<Object, RetryableCall<Object>>) retryingFactory.get(
+            new RetryableCallType(innerType), annotations, retrofit);
+    return new PublisherCallAdapter<>(callAdapter, wantsResponse);
+  }
+
+  private static final class PublisherCallAdapter<R> implements CallAdapter<R, Publisher<?>> {
+    private final CallAdapter<R, RetryableCall<R>> callAdapter;
+    private final boolean wantsResponse;
+
+    PublisherCallAdapter(CallAdapter<R, RetryableCall<R>> callAdapter, boolean wantsResponse) {
+      this.callAdapter = callAdapter;
+      this.wantsResponse = wantsResponse;
+    }
+
+    @Override public Type responseType() {
+      return callAdapter.responseType();
+    }
+
+    @Override public Publisher<?> adapt(final Call<R> call) {
+      if (wantsResponse) {
+        return new Publisher<Response<R>>() {
+          @Override public void subscribe(Subscriber<? super Response<R>> subscriber) {
+            CallSubscription.subscribe(callAdapter.adapt(call.clone()), subscriber, true);
+          }
+        };
+      }
+      return new Publisher<R>() {
+        @Override public void subscribe(Subscriber<? super R> subscriber) {
+          CallSubscription.subscribe(callAdapter.adapt(call.clone()), subscriber, false);
+        }
+      };
+    }
+  }
+
+  /**
+   * Enqueues its call once the subscriber has returned from {@code onSubscribe} and has requested
+   * the result, whichever comes last, so that the result is never signaled concurrently with
+   * {@code onSubscribe}. The subscription is the call's only callback.
+   */
+  private static final class CallSubscription<R> implements Subscription, RetryableCallback<R> {
+    private static final int SUBSCRIBED = 1;
+    private static final int REQUESTED = 2;
+
+    private final RetryableCall<R> call;
+    private final Subscriber<Object> subscriber;
+    private final boolean wantsResponse;
+    private final AtomicInteger state = new AtomicInteger();
+
+    @SuppressWarnings("unchecked") // The subscriber accepts R or Response<R>, per wantsResponse.
+    private CallSubscription(RetryableCall<R> call, Subscriber<?> subscriber,
+        boolean wantsResponse) {
+      this.call = call;
+      this.subscriber = (Subscriber<Object>) subscriber;
+      this.wantsResponse = wantsResponse;
+    }
+
+    static <R> void subscribe(RetryableCall<R> call, Subscriber<?> subscriber,
+        boolean wantsResponse) {
+      if (subscriber == null) throw new NullPointerException("subscriber == null");
+      CallSubscription<R> subscription = new CallSubscription<>(call, subscriber, wantsResponse);
+      subscription.subscriber.onSubscribe(subscription);
+      subscription.mark(SUBSCRIBED);
+    }
+
+    @Override public void request(long n) {
+      if (n <= 0) {
+        call.cancel();
+        subscriber.onError(new IllegalArgumentException("n <= 0: " + n));
+        return;
+      }
+      mark(REQUESTED);
+    }
+
+    private void mark(int flag) {
+      while (true) {
+        int current = state.get();
+        if ((current & flag) != 0) return;
+        int newState = current | flag;
+        if (state.compareAndSet(current, newState)) {
+          if (newState == (SUBSCRIBED | REQUESTED) && !call.isCanceled()) {
+            call.enqueue(this);
+          }
+          return;
+        }
+      }
+    }
+
+    @Override public void cancel() {
+      call.cancel();
+    }
+
+    @Override public void onResponse(RetryableCall<R> call, Response<R> response) {
+      if (call.isCanceled()) return;
+      if (wantsResponse) {
+        subscriber.onNext(response);
+      } else if (response.isSuccessful()) {
+        subscriber.onNext(response.body());
+      } else {
+        subscriber.onError(new HttpException(response));
+        return;
+      }
+      subscriber.onComplete();
+    }
+
+    @Override public void onFailure(RetryableCall<R> call, Throwable t) {
+      if (call.isCanceled()) return;
+      subscriber.onError(t);
+    }
+
+    @Override public void onFailureButCanRetry(RetryableCall<R> call, IOException e) {
+      // Parked. Demand was already requested, so the result is signaled when the call is retried.
+    }
+  }
+
+  /** {@code RetryableCall<responseType>}, to look up the retrying adapter with. */
+  private static final class RetryableCallType implements ParameterizedType {
+    private final Type responseType;
+
+    RetryableCallType(Type responseType) {
+      this.responseType = responseType;
+    }
+
+    @Override public Type[] getActualTypeArguments() {
+      return new Type[] {responseType};
+    }
+
+    @Override public Type getRawType() {
+      return RetryableCall.class;
+    }
+
+    @Override public Type getOwnerType() {
+      return null;
+    }
+
+    @Override public boolean equals(Object other) {
+      if (!(other instanceof ParameterizedType)) return false;
+      ParameterizedType that = (ParameterizedType) other;
+      return that.getRawType() == RetryableCall.class
+          && that.getOwnerType() == null
+          && Arrays.equals(that.getActualTypeArguments(), getActualTypeArguments());
+    }
+
+    @Override public int hashCode() {
+      return responseType.hashCode() ^ RetryableCall.class.hashCode();
+    }
+
+    @Override public String toString() {
+      return RetryableCall.class.getName() + "<" + responseType + ">";
+    }
+  }
+}
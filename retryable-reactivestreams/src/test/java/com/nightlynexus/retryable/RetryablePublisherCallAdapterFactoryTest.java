@@ -0,0 +1,111 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@RunWith(JUnit4.class)
+public final class RetryablePublisherCallAdapterFactoryTest {
+  private interface Service {
+    @GET("/") Publisher<String> body();
+    @GET("/") Publisher<Response<String>> response();
+  }
+
+  private final MockWebServer server = new MockWebServer();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private Service service;
+
+  @Before public void setUp() {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .build();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(RetryablePublisherCallAdapterFactory.create(retryableCalls))
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    service = retrofit.create(Service.class);
+  }
+
+  @After public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test public void callIsSentOnlyOnDemand() throws Exception {
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    RecordingSubscriber<Response<String>> subscriber = new RecordingSubscriber<>();
+    service.response().subscribe(subscriber);
+    assertThat(subscriber.events.poll(100, MILLISECONDS)).isNull();
+    assertThat(server.getRequestCount()).isEqualTo(0);
+
+    subscriber.subscription.request(1);
+    Object next = subscriber.events.poll(5, SECONDS);
+    assertThat(((Response<?>) next).body()).isEqualTo("Hi");
+    assertThat(subscriber.events.poll(5, SECONDS)).isEqualTo("complete");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void bodySignalsHttpException() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404));
+
+    RecordingSubscriber<String> subscriber = new RecordingSubscriber<>();
+    service.body().subscribe(subscriber);
+    subscriber.subscription.request(1);
+    Object error = subscriber.events.poll(5, SECONDS);
+    assertThat(error).isInstanceOf(HttpException.class);
+    assertThat(((HttpException) error).code()).isEqualTo(404);
+  }
+
+  @Test public void nonPositiveRequestSignalsError() throws Exception {
+    RecordingSubscriber<String> subscriber = new RecordingSubscriber<>();
+    service.body().subscribe(subscriber);
+    subscriber.subscription.request(0);
+    assertThat(subscriber.events.poll(5, SECONDS)).isInstanceOf(IllegalArgumentException.class);
+    assertThat(server.getRequestCount()).isEqualTo(0);
+  }
+
+  /** Records each signal after {@code onSubscribe}: items, errors, and "complete". */
+  static final class RecordingSubscriber<T> implements Subscriber<T> {
+    final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    volatile Subscription subscription;
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public void onNext(T item) {
+      events.add(item);
+    }
+
+    @Override public void onError(Throwable t) {
+      events.add(t);
+    }
+
+    @Override public void onComplete() {
+      events.add("complete");
+    }
+  }
+}
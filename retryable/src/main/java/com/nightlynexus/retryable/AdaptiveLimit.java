@@ -0,0 +1,55 @@
+package com.nightlynexus.retryable;
+
+/**
+ * An additive-increase/multiplicative-decrease limit on the replays in flight. Every replay that
+ * completes in good time raises the limit by {@code 1 / limit}, so about one more slot per
+ * limit's worth of completions. A replay that fails, is turned away (429 or 5xx), or takes more
+ * than twice the smoothed round trip halves it. Replays that were sent before the last
+ * decrease are not counted against the new limit, so one burst of failures halves it only once.
+ */
+final class AdaptiveLimit {
+  private static final double BACKOFF_RATIO = 0.5;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  /** How much each round trip moves the smoothed round trip, as in TCP. */
+  private static final double RTT_GAIN = 0.125;
+
+  private final int maxLimit;
+  private double limit; // Guarded by this.
+  private long decreasedAtNanos = System.nanoTime(); // Guarded by this.
+  private double smoothedRttNanos; // Guarded by this.
+  private volatile int currentLimit;
+
+  AdaptiveLimit(int initialLimit, int maxLimit) {
+    this.maxLimit = maxLimit;
+    this.limit = initialLimit;
+    this.currentLimit = initialLimit;
+  }
+
+  int get() {
+    return currentLimit;
+  }
+
+  /**
+   * Records a replay that was sent at {@code startNanos} and took {@code rttNanos}. It was
+   * {@code dropped} if it failed or the server turned it away.
+   */
+  synchronized void onSample(long startNanos, long rttNanos, boolean dropped) {
+    if (!dropped) {
+      if (smoothedRttNanos == 0.0) {
+        smoothedRttNanos = rttNanos;
+      }
+      dropped = rttNanos > LATENCY_TOLERANCE * smoothedRttNanos;
+      // Slow replays still move the baseline, so that a backend that got slower for good does
+      // not pin the limit down.
+      smoothedRttNanos += RTT_GAIN * (rttNanos - smoothedRttNanos);
+    }
+    if (dropped) {
+      if (startNanos - decreasedAtNanos < 0) return;
+      limit = Math.max(1.0, limit * BACKOFF_RATIO);
+      decreasedAtNanos = System.nanoTime();
+    } else {
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+    currentLimit = (int) limit;
+  }
+}
@@ -0,0 +1,126 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Retries parked calls automatically once their backoff elapses.
+ *
+ * <p>All parked calls share one time-ordered set and one wake-up task on the executor; nothing is
+ * allocated on the executor per call. Each wake-up replays every call that is due and then
+ * schedules itself for the next earliest deadline. A call that needs an earlier wake-up replaces
+ * the pending one rather than adding another.
+ */
+final class BackoffScheduler implements Runnable {
+  private static final Comparator<ParkedCall> RETRY_ORDER = new Comparator<ParkedCall>() {
+    @Override public int compare(ParkedCall a, ParkedCall b) {
+      if (a.retryAtNanos != b.retryAtNanos) {
+        return a.retryAtNanos - b.retryAtNanos < 0 ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+  private static final long NOT_SCHEDULED = Long.MAX_VALUE;
+
+  private final ScheduledExecutorService executor;
+  private final ParkedCalls parkedCalls;
+  private final ReplayQueue replayQueue;
+  private final ConcurrentSkipListSet<ParkedCall> scheduled =
+      new ConcurrentSkipListSet<>(RETRY_ORDER);
+  private volatile long nextWakeUpNanos = NOT_SCHEDULED; // Written while holding this.
+  private ScheduledFuture<?> wakeUp; // Guarded by this.
+
+  BackoffScheduler(ScheduledExecutorService executor, ParkedCalls parkedCalls,
+      ReplayQueue replayQueue) {
+    this.executor = executor;
+    this.parkedCalls = parkedCalls;
+    this.replayQueue = replayQueue;
+  }
+
+  /**
+   * Returns when {@code call} should next be retried after {@code failure}. If the server said
+   * when to come back, that is when. Otherwise, the backoff of the call's policy doubles with each
+   * attempt up to the maximum, and half of it is randomized so that calls which failed together do
+   * not all retry together.
+   */
+  long retryAtNanos(RealRetryableCall call, IOException failure) {
+    return System.nanoTime() + delayNanos(call, failure);
+  }
+
+  /** Returns how long to wait before retrying {@code call} after {@code failure}. */
+  static long delayNanos(RealRetryableCall call, IOException failure) {
+    if (failure instanceof RetryableStatusException) {
+      long retryAfterMillis = ((RetryableStatusException) failure).retryAfterMillis();
+      if (retryAfterMillis >= 0L) return MILLISECONDS.toNanos(retryAfterMillis);
+    }
+    int attempts = call.attempts;
+    long maxBackoffNanos = call.policy.maxBackoffNanos;
+    long backoff = call.policy.initialBackoffNanos;
+    for (int i = 1; i < attempts && backoff < maxBackoffNanos; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, maxBackoffNanos);
+    long half = backoff / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+
+  void schedule(ParkedCall parked) {
+    scheduled.add(parked);
+    wakeUpBy(parked.retryAtNanos);
+  }
+
+  void unschedule(ParkedCall parked) {
+    scheduled.remove(parked);
+  }
+
+  void clear() {
+    scheduled.clear();
+  }
+
+  @Override public void run() {
+    synchronized (this) {
+      nextWakeUpNanos = NOT_SCHEDULED;
+      wakeUp = null;
+    }
+    long now = System.nanoTime();
+    List<ParkedCall> due = new ArrayList<>();
+    try {
+      for (ParkedCall parked : scheduled) {
+        if (parked.retryAtNanos - now > 0) break;
+        if (scheduled.remove(parked) && parkedCalls.claim(parked)) {
+          due.add(parked);
+        }
+      }
+      // Fails any call that throws while being replayed, so none of them is lost.
+      replayQueue.replay(due);
+    } finally {
+      // Even if replaying threw, the calls that aren't due yet still need their wake-up.
+      for (ParkedCall next : scheduled) {
+        wakeUpBy(next.retryAtNanos);
+        break;
+      }
+    }
+  }
+
+  /** Makes sure a wake-up is scheduled no later than {@code retryAtNanos}. */
+  private void wakeUpBy(long retryAtNanos) {
+    long next = nextWakeUpNanos;
+    if (next != NOT_SCHEDULED && next - retryAtNanos <= 0) return;
+    synchronized (this) {
+      next = nextWakeUpNanos;
+      if (next != NOT_SCHEDULED && next - retryAtNanos <= 0) return;
+      if (wakeUp != null) wakeUp.cancel(false);
+      nextWakeUpNanos = retryAtNanos;
+      wakeUp = executor.schedule(this, retryAtNanos - System.nanoTime(), NANOSECONDS);
+    }
+  }
+}
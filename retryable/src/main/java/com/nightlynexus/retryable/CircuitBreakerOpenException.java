@@ -0,0 +1,22 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+
+/**
+ * Delivered to {@link RetryableCallback#onFailureButCanRetry} when a call is parked without being
+ * sent because its host's circuit breaker is open.
+ */
+public final class CircuitBreakerOpenException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final String host;
+
+  CircuitBreakerOpenException(String host) {
+    super("Circuit breaker open for " + host);
+    this.host = host;
+  }
+
+  public String host() {
+    return host;
+  }
+}
@@ -0,0 +1,91 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One circuit breaker per host. A breaker opens after {@code failureThreshold} consecutive
+ * attempts to its host fail with an {@link java.io.IOException}. While it is open, calls to the
+ * host are parked without being sent. Once {@code openNanos} has passed, a single call is let
+ * through as a probe: if the host answers, the breaker closes; if not, it stays open for another
+ * {@code openNanos}.
+ */
+final class CircuitBreakers {
+  private final int failureThreshold;
+  private final long openNanos;
+  private final ConcurrentHashMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+  CircuitBreakers(int failureThreshold, long openNanos) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openNanos;
+  }
+
+  /** Returns true if a call to {@code host} may be sent now. */
+  boolean allowRequest(String host) {
+    Breaker breaker = breakers.get(host);
+    return breaker == null || breaker.allowRequest();
+  }
+
+  /** Returns true if this closed the breaker for {@code host}. */
+  boolean recordSuccess(String host) {
+    Breaker breaker = breakers.get(host);
+    return breaker != null && breaker.recordSuccess();
+  }
+
+  void recordFailure(String host) {
+    Breaker breaker = breakers.get(host);
+    if (breaker == null) {
+      Breaker created = new Breaker();
+      breaker = breakers.putIfAbsent(host, created);
+      if (breaker == null) breaker = created;
+    }
+    breaker.recordFailure();
+  }
+
+  private final class Breaker {
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile int state = CLOSED; // Written while holding this.
+    /** When the breaker last opened or let a probe through. Written while holding this. */
+    private volatile long changedAtNanos;
+
+    boolean allowRequest() {
+      if (state == CLOSED) return true;
+      // A probe that never reports back (because it was canceled, say) must not wedge the
+      // breaker, so a half-open breaker lets another probe through after the same wait.
+      if (System.nanoTime() - changedAtNanos < openNanos) return false;
+      synchronized (this) {
+        if (state == CLOSED) return true;
+        long now = System.nanoTime();
+        if (now - changedAtNanos < openNanos) return false;
+        state = HALF_OPEN;
+        changedAtNanos = now;
+        return true;
+      }
+    }
+
+    boolean recordSuccess() {
+      if (consecutiveFailures.get() != 0) consecutiveFailures.set(0);
+      if (state == CLOSED) return false;
+      synchronized (this) {
+        if (state == CLOSED) return false;
+        state = CLOSED;
+        return true;
+      }
+    }
+
+    void recordFailure() {
+      if (state == OPEN) return;
+      if (state == HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+        synchronized (this) {
+          if (state == OPEN) return;
+          state = OPEN;
+          changedAtNanos = System.nanoTime();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative longs that many threads can record into without locking. Like an
+ * HDR histogram, buckets are log-linear: each power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so a value is known to within an eighth of itself. Values below
+ * {@value #SUB_BUCKETS} are counted exactly.
+ */
+final class ConcurrentHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(-1L);
+
+  void record(long value) {
+    if (value < 0L) value = 0L;
+    counts.incrementAndGet(bucket(value));
+    // After warming up, these rarely need to be written.
+    while (true) {
+      long currentMin = min.get();
+      if (value >= currentMin || min.compareAndSet(currentMin, value)) break;
+    }
+    while (true) {
+      long currentMax = max.get();
+      if (value <= currentMax || max.compareAndSet(currentMax, value)) break;
+    }
+  }
+
+  /**
+   * Returns a copy of the counts. Values recorded during the copy may or may not be included,
+   * each on its own.
+   */
+  Histogram snapshot() {
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return new Histogram(snapshot, min.get(), max.get());
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the smallest value counted in {@code bucket}. */
+  static long lowestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /** Returns the largest value counted in {@code bucket}. */
+  static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    return lowestValue(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1L;
+  }
+}
@@ -0,0 +1,71 @@
+package com.nightlynexus.retryable;
+
+/**
+ * A snapshot of how the calls of one service method have fared. Latencies and times are in
+ * nanoseconds.
+ *
+ * @see RetryableCalls#endpointMetrics()
+ */
+public final class EndpointMetrics {
+  private final String endpoint;
+  private final Histogram firstAttemptLatency;
+  private final Histogram replayedAttemptLatency;
+  private final Histogram timeParked;
+  private final Histogram attemptsToSuccess;
+  private final long failures;
+
+  EndpointMetrics(String endpoint, Histogram firstAttemptLatency,
+      Histogram replayedAttemptLatency, Histogram timeParked, Histogram attemptsToSuccess,
+      long failures) {
+    this.endpoint = endpoint;
+    this.firstAttemptLatency = firstAttemptLatency;
+    this.replayedAttemptLatency = replayedAttemptLatency;
+    this.timeParked = timeParked;
+    this.attemptsToSuccess = attemptsToSuccess;
+    this.failures = failures;
+  }
+
+  /**
+   * Returns the HTTP method and URL template of the service method, like
+   * "GET https://api.example.com/users/{id}". Service methods that share it, like the same method
+   * of a service created by two {@link retrofit2.Retrofit} instances, have separate metrics.
+   */
+  public String endpoint() {
+    return endpoint;
+  }
+
+  /** Returns how long first attempts took to get a response or fail. */
+  public Histogram firstAttemptLatency() {
+    return firstAttemptLatency;
+  }
+
+  /** Returns how long attempts after the first took to get a response or fail. */
+  public Histogram replayedAttemptLatency() {
+    return replayedAttemptLatency;
+  }
+
+  /** Returns how long calls stayed parked before being sent again. */
+  public Histogram timeParked() {
+    return timeParked;
+  }
+
+  /** Returns how many attempts the calls that got a successful response took. */
+  public Histogram attemptsToSuccess() {
+    return attemptsToSuccess;
+  }
+
+  /** Returns how many calls were given up on. */
+  public long failures() {
+    return failures;
+  }
+
+  @Override public String toString() {
+    return "EndpointMetrics{endpoint=" + endpoint
+        + ", firstAttemptLatency=" + firstAttemptLatency
+        + ", replayedAttemptLatency=" + replayedAttemptLatency
+        + ", timeParked=" + timeParked
+        + ", attemptsToSuccess=" + attemptsToSuccess
+        + ", failures=" + failures
+        + '}';
+  }
+}
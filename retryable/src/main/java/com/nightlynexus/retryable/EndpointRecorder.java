@@ -0,0 +1,82 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.HttpUrl;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.HEAD;
+import retrofit2.http.HTTP;
+import retrofit2.http.OPTIONS;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+
+/** Records the metrics of the calls of one service method. */
+final class EndpointRecorder {
+  final String endpoint;
+  final ConcurrentHistogram firstAttemptLatency = new ConcurrentHistogram();
+  final ConcurrentHistogram replayedAttemptLatency = new ConcurrentHistogram();
+  final ConcurrentHistogram timeParked = new ConcurrentHistogram();
+  final ConcurrentHistogram attemptsToSuccess = new ConcurrentHistogram();
+  final AtomicLong failures = new AtomicLong();
+
+  EndpointRecorder(String endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Returns the name of the endpoint of a service method with {@code annotations}: its HTTP method
+   * and URL template, like "GET https://api.example.com/users/{id}".
+   */
+  static String endpoint(HttpUrl baseUrl, Annotation[] annotations) {
+    for (Annotation annotation : annotations) {
+      if (annotation instanceof GET) return endpoint(baseUrl, "GET", ((GET) annotation).value());
+      if (annotation instanceof POST) return endpoint(baseUrl, "POST", ((POST) annotation).value());
+      if (annotation instanceof PUT) return endpoint(baseUrl, "PUT", ((PUT) annotation).value());
+      if (annotation instanceof DELETE) {
+        return endpoint(baseUrl, "DELETE", ((DELETE) annotation).value());
+      }
+      if (annotation instanceof PATCH) {
+        return endpoint(baseUrl, "PATCH", ((PATCH) annotation).value());
+      }
+      if (annotation instanceof HEAD) return endpoint(baseUrl, "HEAD", ((HEAD) annotation).value());
+      if (annotation instanceof OPTIONS) {
+        return endpoint(baseUrl, "OPTIONS", ((OPTIONS) annotation).value());
+      }
+      if (annotation instanceof HTTP) {
+        HTTP http = (HTTP) annotation;
+        return endpoint(baseUrl, http.method(), http.path());
+      }
+    }
+    // Retrofit rejects a service method without one of the above right after adapting it.
+    return "unknown";
+  }
+
+  /**
+   * Resolves {@code path} against {@code baseUrl} as Retrofit does, but textually, so that its
+   * placeholders are kept as written.
+   */
+  private static String endpoint(HttpUrl baseUrl, String method, String path) {
+    if (path.startsWith("http:") || path.startsWith("https:")) return method + " " + path;
+    HttpUrl.Builder base = baseUrl.newBuilder().query(null);
+    if (path.startsWith("/")) {
+      return method + " " + base.encodedPath("/").build() + path.substring(1);
+    }
+    return method + " " + base.build() + path;
+  }
+
+  void attemptEnded(int attempt, long tookNanos) {
+    if (attempt == 1) {
+      firstAttemptLatency.record(tookNanos);
+    } else {
+      replayedAttemptLatency.record(tookNanos);
+    }
+  }
+
+  EndpointMetrics snapshot() {
+    return new EndpointMetrics(endpoint, firstAttemptLatency.snapshot(),
+        replayedAttemptLatency.snapshot(), timeParked.snapshot(), attemptsToSuccess.snapshot(),
+        failures.get());
+  }
+}
@@ -0,0 +1,80 @@
+package com.nightlynexus.retryable;
+
+/**
+ * A snapshot of the distribution of recorded values, like latencies in nanoseconds. Quantiles are
+ * accurate to within an eighth of the value.
+ */
+public final class Histogram {
+  private final long[] counts;
+  private final long count;
+  private final long min;
+  private final long max;
+
+  Histogram(long[] counts, long min, long max) {
+    this.counts = counts;
+    long count = 0L;
+    for (long bucketCount : counts) {
+      count += bucketCount;
+    }
+    this.count = count;
+    this.min = count == 0L ? 0L : min;
+    this.max = count == 0L ? 0L : max;
+  }
+
+  /** Returns how many values were recorded. */
+  public long count() {
+    return count;
+  }
+
+  /** Returns the smallest recorded value, or 0 if none were recorded. */
+  public long min() {
+    return min;
+  }
+
+  /** Returns the largest recorded value, or 0 if none were recorded. */
+  public long max() {
+    return max;
+  }
+
+  /** Returns the approximate mean of the recorded values, or 0 if none were recorded. */
+  public double mean() {
+    if (count == 0L) return 0d;
+    double sum = 0d;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0L) continue;
+      long lowest = ConcurrentHistogram.lowestValue(i);
+      long highest = ConcurrentHistogram.highestValue(i);
+      sum += counts[i] * (lowest + (highest - lowest) / 2d);
+    }
+    return Math.max(min, Math.min(max, sum / count));
+  }
+
+  /**
+   * Returns the value that {@code quantile} of the recorded values are at or below, like 0.99 for
+   * the 99th percentile, or 0 if none were recorded.
+   */
+  public long valueAtQuantile(double quantile) {
+    if (quantile < 0d || quantile > 1d) {
+      throw new IllegalArgumentException("quantile < 0 || quantile > 1: " + quantile);
+    }
+    if (count == 0L) return 0L;
+    long rank = Math.max(1L, (long) Math.ceil(quantile * count));
+    long seen = 0L;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.max(min, Math.min(max, ConcurrentHistogram.highestValue(i)));
+      }
+    }
+    return max;
+  }
+
+  @Override public String toString() {
+    return "Histogram{count=" + count
+        + ", min=" + min
+        + ", p50=" + valueAtQuantile(0.5d)
+        + ", p99=" + valueAtQuantile(0.99d)
+        + ", max=" + max
+        + '}';
+  }
+}
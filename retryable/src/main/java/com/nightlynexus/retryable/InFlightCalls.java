@@ -0,0 +1,33 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import retrofit2.Callback;
+
+/**
+ * Idempotent requests that are on the network right now. A call whose request equals one of
+ * them joins it instead of sending its own.
+ */
+final class InFlightCalls {
+  private final ConcurrentHashMap<RequestKey, SharedCallback> flights = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the callback to send {@code call} with, or null if it joined an identical request
+   * that is already in flight and must not be sent.
+   */
+  Callback<Object> join(RealRetryableCall call, Callback<Object> callback) {
+    RequestKey key = RequestKey.of(call.request(), call.policy.idempotency);
+    if (key == null) return callback;
+    SharedCallback flight = new SharedCallback(call, callback, this, key);
+    while (true) {
+      SharedCallback existing = flights.putIfAbsent(key, flight);
+      if (existing == null) return flight;
+      if (existing.addFollower(call, callback)) return null;
+      // That request completed while we were joining it. Take its place.
+      flights.remove(key, existing);
+    }
+  }
+
+  void remove(RequestKey key, SharedCallback flight) {
+    flights.remove(key, flight);
+  }
+}
@@ -0,0 +1,29 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import retrofit2.Callback;
+
+/** A call that failed with an {@link java.io.IOException} and is waiting to be retried. */
+final class ParkedCall {
+  final long sequence;
+  final RealRetryableCall call;
+  final Callback<Object> callback;
+  /** Why the call was parked. */
+  final IOException failure;
+  /** When the backoff scheduler should retry this call, in {@link System#nanoTime()} units. */
+  final long retryAtNanos;
+
+  ParkedCall(long sequence, RealRetryableCall call, Callback<Object> callback,
+      IOException failure, long retryAtNanos) {
+    this.sequence = sequence;
+    this.call = call;
+    this.callback = callback;
+    this.failure = failure;
+    this.retryAtNanos = retryAtNanos;
+  }
+
+  /** Gives up on this call because it outlived its {@linkplain TimeToLive time to live}. */
+  void expire() {
+    call.giveUp(new IOException("Parked call expired", failure));
+  }
+}
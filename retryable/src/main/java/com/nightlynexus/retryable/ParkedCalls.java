@@ -0,0 +1,261 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import retrofit2.Callback;
+
+/**
+ * The registry of parked calls.
+ *
+ * <p>Parking and unparking go through a {@link ConcurrentHashMap}, so they do not contend on a
+ * single lock. Each entry carries a sequence number so that calls can still be replayed in the
+ * order they were parked. Whoever removes an entry from the map owns it, so a concurrent cancel
+ * and retry can never both act on the same parked call.
+ *
+ * <p>Entries are also indexed by host and by {@linkplain RetryGroup group}, so that retrying one
+ * host or group only visits the calls that match.
+ *
+ * <p>The registry may be bounded. When it is full, it either rejects new calls or keeps going and
+ * lets the caller {@linkplain #evictOverflow() evict} calls in eviction order until it fits.
+ */
+final class ParkedCalls {
+  private static final Comparator<ParkedCall> PARK_ORDER = new Comparator<ParkedCall>() {
+    @Override public int compare(ParkedCall a, ParkedCall b) {
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private static final Comparator<ParkedCall> PRIORITY_ORDER = new Comparator<ParkedCall>() {
+    @Override public int compare(ParkedCall a, ParkedCall b) {
+      int aPriority = a.call.policy.priority;
+      int bPriority = b.call.policy.priority;
+      if (aPriority != bPriority) return aPriority < bPriority ? -1 : 1;
+      return PARK_ORDER.compare(a, b);
+    }
+  };
+  private static final Comparator<ParkedCall> EXPIRY_ORDER = new Comparator<ParkedCall>() {
+    @Override public int compare(ParkedCall a, ParkedCall b) {
+      long aExpiresAt = a.call.expiresAtNanos;
+      long bExpiresAt = b.call.expiresAtNanos;
+      if (aExpiresAt != bExpiresAt) return aExpiresAt - bExpiresAt < 0 ? -1 : 1;
+      return PARK_ORDER.compare(a, b);
+    }
+  };
+
+  private final ConcurrentHashMap<RealRetryableCall, ParkedCall> calls = new ConcurrentHashMap<>();
+  private final Index byHost = new Index();
+  private final Index byGroup = new Index();
+  private final AtomicLong nextSequence = new AtomicLong();
+  private final AtomicInteger size = new AtomicInteger();
+  private final int maxSize;
+  private final boolean rejectWhenFull;
+  /** Entries in the order they should be evicted, or null if nothing is ever evicted. */
+  private final NavigableSet<ParkedCall> evictionOrder;
+  /** Entries with a time to live or a deadline, soonest to expire first. */
+  private final NavigableSet<ParkedCall> expiryOrder = new ConcurrentSkipListSet<>(EXPIRY_ORDER);
+
+  ParkedCalls() {
+    this(Integer.MAX_VALUE, RetryableCalls.OverflowPolicy.REJECT_NEW);
+  }
+
+  ParkedCalls(int maxSize, RetryableCalls.OverflowPolicy overflowPolicy) {
+    this.maxSize = maxSize;
+    this.rejectWhenFull = overflowPolicy == RetryableCalls.OverflowPolicy.REJECT_NEW;
+    if (maxSize == Integer.MAX_VALUE || rejectWhenFull) {
+      this.evictionOrder = null;
+    } else if (overflowPolicy == RetryableCalls.OverflowPolicy.EVICT_LOWEST_PRIORITY) {
+      this.evictionOrder = new ConcurrentSkipListSet<>(PRIORITY_ORDER);
+    } else {
+      this.evictionOrder = new ConcurrentSkipListSet<>(PARK_ORDER);
+    }
+  }
+
+  /** Returns the new entry, or null if the registry is full and rejects new calls. */
+  ParkedCall add(RealRetryableCall call, Callback<Object> callback, IOException failure,
+      long retryAtNanos) {
+    if (!reserve()) return null;
+    ParkedCall parked =
+        new ParkedCall(nextSequence.getAndIncrement(), call, callback, failure, retryAtNanos);
+    byHost.add(call.host(), parked);
+    if (call.policy.group != null) byGroup.add(call.policy.group, parked);
+    if (evictionOrder != null) evictionOrder.add(parked);
+    if (call.expires) expiryOrder.add(parked);
+    ParkedCall previous = calls.put(call, parked);
+    if (previous != null) {
+      size.decrementAndGet();
+      unindex(previous);
+    }
+    return parked;
+  }
+
+  private boolean reserve() {
+    if (!rejectWhenFull) {
+      size.incrementAndGet();
+      return true;
+    }
+    while (true) {
+      int current = size.get();
+      if (current >= maxSize) return false;
+      if (size.compareAndSet(current, current + 1)) return true;
+    }
+  }
+
+  /**
+   * Removes and returns the next entry to evict, or null if the registry is within its bounds.
+   * The caller owns the returned entry.
+   */
+  ParkedCall evictOverflow() {
+    if (evictionOrder == null) return null;
+    if (size.get() <= maxSize) return null;
+    for (ParkedCall candidate : evictionOrder) {
+      if (claim(candidate)) return candidate;
+    }
+    // Every entry was claimed meanwhile; whoever is still adding evicts for itself.
+    return null;
+  }
+
+  /**
+   * Removes and returns the entry that expired first, or null if no entry has expired by
+   * {@code nowNanos}. The caller owns the returned entry. Only expired entries are visited.
+   */
+  ParkedCall pollExpired(long nowNanos) {
+    for (ParkedCall candidate : expiryOrder) {
+      if (!candidate.call.isExpired(nowNanos)) return null;
+      if (claim(candidate)) return candidate;
+    }
+    return null;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  /** Returns the removed entry, or null if {@code call} was not parked. */
+  ParkedCall remove(RealRetryableCall call) {
+    ParkedCall parked = calls.remove(call);
+    if (parked != null) {
+      size.decrementAndGet();
+      unindex(parked);
+    }
+    return parked;
+  }
+
+  /** Returns true if {@code parked} was still parked and the caller now owns it. */
+  boolean claim(ParkedCall parked) {
+    if (!calls.remove(parked.call, parked)) return false;
+    size.decrementAndGet();
+    unindex(parked);
+    return true;
+  }
+
+  /**
+   * Removes and returns every call parked before this method was called, oldest first. Calls
+   * parked concurrently with this method are left for the next removal.
+   */
+  List<ParkedCall> removeAll() {
+    return claimAll(calls.values(), nextSequence.get());
+  }
+
+  /** Removes and returns every call to {@code host}, oldest first. */
+  List<ParkedCall> removeAllForHost(String host) {
+    return claimAll(byHost.get(host), nextSequence.get());
+  }
+
+  /** Removes and returns every call in {@code group}, oldest first. */
+  List<ParkedCall> removeAllInGroup(String group) {
+    return claimAll(byGroup.get(group), nextSequence.get());
+  }
+
+  /** Removes and returns every call that {@code filter} matches, oldest first. */
+  List<ParkedCall> removeAll(RetryableCalls.Filter filter) {
+    long end = nextSequence.get();
+    List<ParkedCall> removed = new ArrayList<>();
+    for (ParkedCall parked : calls.values()) {
+      if (parked.sequence < end && filter.matches(parked.call) && claim(parked)) {
+        removed.add(parked);
+      }
+    }
+    Collections.sort(removed, PARK_ORDER);
+    return removed;
+  }
+
+  /**
+   * Returns a snapshot of the entries parked before this method was called, without claiming them.
+   * Entries removed concurrently with this method may still be included.
+   */
+  ParkedCallsSnapshot snapshot(long nowNanos) {
+    long end = nextSequence.get();
+    List<ParkedCall> parked = new ArrayList<>(size.get());
+    for (ParkedCall candidate : calls.values()) {
+      if (candidate.sequence < end) parked.add(candidate);
+    }
+    Collections.sort(parked, PARK_ORDER);
+    return ParkedCallsSnapshot.create(parked, nowNanos);
+  }
+
+  void clear() {
+    for (RealRetryableCall call : calls.keySet()) {
+      remove(call);
+    }
+  }
+
+  private List<ParkedCall> claimAll(Collection<ParkedCall> candidates, long end) {
+    List<ParkedCall> removed = new ArrayList<>();
+    for (ParkedCall parked : candidates) {
+      if (parked.sequence < end && claim(parked)) {
+        removed.add(parked);
+      }
+    }
+    Collections.sort(removed, PARK_ORDER);
+    return removed;
+  }
+
+  private void unindex(ParkedCall parked) {
+    if (evictionOrder != null) evictionOrder.remove(parked);
+    if (parked.call.expires) expiryOrder.remove(parked);
+    byHost.remove(parked.call.host(), parked);
+    if (parked.call.policy.group != null) byGroup.remove(parked.call.policy.group, parked);
+  }
+
+  /**
+   * Parked calls grouped by a key. Buckets are kept once created; there are only as many as there
+   * are hosts or groups.
+   */
+  private static final class Index {
+    private final ConcurrentHashMap<String, ConcurrentMap<RealRetryableCall, ParkedCall>> buckets =
+        new ConcurrentHashMap<>();
+
+    void add(String key, ParkedCall parked) {
+      ConcurrentMap<RealRetryableCall, ParkedCall> bucket = buckets.get(key);
+      if (bucket == null) {
+        ConcurrentMap<RealRetryableCall, ParkedCall> created = new ConcurrentHashMap<>();
+        bucket = buckets.putIfAbsent(key, created);
+        if (bucket == null) bucket = created;
+      }
+      bucket.put(parked.call, parked);
+    }
+
+    void remove(String key, ParkedCall parked) {
+      ConcurrentMap<RealRetryableCall, ParkedCall> bucket = buckets.get(key);
+      if (bucket != null) bucket.remove(parked.call, parked);
+    }
+
+    Collection<ParkedCall> get(String key) {
+      ConcurrentMap<RealRetryableCall, ParkedCall> bucket = buckets.get(key);
+      return bucket == null
+          ? Collections.<ParkedCall>emptyList()
+          : bucket.values();
+    }
+
+  }
+}
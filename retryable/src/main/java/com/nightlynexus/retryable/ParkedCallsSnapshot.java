@@ -0,0 +1,162 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import okhttp3.Request;
+
+/**
+ * The calls that were parked at one moment, oldest first, and how many of them there were by host
+ * and by HTTP method. A call's age is how long ago it was first parked, in nanoseconds, however
+ * many times it has been retried and parked again since.
+ *
+ * @see RetryableCalls#parkedCallsSnapshot()
+ */
+public final class ParkedCallsSnapshot {
+  private final List<Entry> calls;
+  private final Map<String, Integer> countsByHost;
+  private final Map<String, Integer> countsByMethod;
+  private final long oldestAgeNanos;
+
+  private ParkedCallsSnapshot(List<Entry> calls, Map<String, Integer> countsByHost,
+      Map<String, Integer> countsByMethod, long oldestAgeNanos) {
+    this.calls = calls;
+    this.countsByHost = countsByHost;
+    this.countsByMethod = countsByMethod;
+    this.oldestAgeNanos = oldestAgeNanos;
+  }
+
+  /** Oldest first. */
+  private static final Comparator<Entry> BY_AGE = new Comparator<Entry>() {
+    @Override public int compare(Entry a, Entry b) {
+      return Long.compare(b.ageNanos, a.ageNanos);
+    }
+  };
+
+  /**
+   * Returns a snapshot of {@code parked}, which are in the order they were last parked. A call
+   * that was parked again may be older than calls ahead of it, so the entries are sorted by age.
+   */
+  static ParkedCallsSnapshot create(List<ParkedCall> parked, long nowNanos) {
+    List<Entry> calls = new ArrayList<>(parked.size());
+    Map<String, Integer> countsByHost = new TreeMap<>();
+    Map<String, Integer> countsByMethod = new TreeMap<>();
+    long oldestAgeNanos = 0L;
+    for (int i = 0, size = parked.size(); i < size; i++) {
+      ParkedCall entry = parked.get(i);
+      RealRetryableCall call = entry.call;
+      Request request = call.request();
+      long ageNanos = Math.max(0L, nowNanos - call.firstParkedAtNanos);
+      calls.add(new Entry(request, call.attempts, call.firstParkedAtMillis, ageNanos,
+          entry.failure));
+      increment(countsByHost, call.host());
+      increment(countsByMethod, request.method());
+      if (ageNanos > oldestAgeNanos) oldestAgeNanos = ageNanos;
+    }
+    Collections.sort(calls, BY_AGE);
+    return new ParkedCallsSnapshot(Collections.unmodifiableList(calls),
+        Collections.unmodifiableMap(countsByHost), Collections.unmodifiableMap(countsByMethod),
+        oldestAgeNanos);
+  }
+
+  private static void increment(Map<String, Integer> counts, String key) {
+    Integer count = counts.get(key);
+    counts.put(key, count == null ? 1 : count + 1);
+  }
+
+  /** Returns how many calls were parked. */
+  public int size() {
+    return calls.size();
+  }
+
+  /** Returns the parked calls, oldest first. */
+  public List<Entry> calls() {
+    return calls;
+  }
+
+  /** Returns how many calls were parked for each host, by host. */
+  public Map<String, Integer> countsByHost() {
+    return countsByHost;
+  }
+
+  /** Returns how many calls were parked for each HTTP method, by method. */
+  public Map<String, Integer> countsByMethod() {
+    return countsByMethod;
+  }
+
+  /** Returns how long ago the oldest call was first parked, or 0. */
+  public long oldestAgeNanos() {
+    return oldestAgeNanos;
+  }
+
+  @Override public String toString() {
+    return "ParkedCallsSnapshot{size=" + calls.size()
+        + ", countsByHost=" + countsByHost
+        + ", countsByMethod=" + countsByMethod
+        + ", oldestAgeNanos=" + oldestAgeNanos
+        + '}';
+  }
+
+  /** A parked call. */
+  public static final class Entry {
+    private final Request request;
+    private final int attempts;
+    private final long firstFailureMillis;
+    private final long ageNanos;
+    private final IOException failure;
+
+    Entry(Request request, int attempts, long firstFailureMillis, long ageNanos,
+        IOException failure) {
+      this.request = request;
+      this.attempts = attempts;
+      this.firstFailureMillis = firstFailureMillis;
+      this.ageNanos = ageNanos;
+      this.failure = failure;
+    }
+
+    public Request request() {
+      return request;
+    }
+
+    /** Returns the HTTP method and URL of the request, like "GET https://example.com/users/1". */
+    public String requestLine() {
+      return request.method() + ' ' + request.url();
+    }
+
+    /** Returns how many attempts the call had sent. */
+    public int attempts() {
+      return attempts;
+    }
+
+    /**
+     * Returns when the call was first parked, in milliseconds since the epoch like
+     * {@link System#currentTimeMillis()}.
+     */
+    public long firstFailureMillis() {
+      return firstFailureMillis;
+    }
+
+    /** Returns how long ago the call was first parked. */
+    public long ageNanos() {
+      return ageNanos;
+    }
+
+    /** Returns the failure of the call's last attempt. */
+    public IOException failure() {
+      return failure;
+    }
+
+    @Override public String toString() {
+      return "Entry{request=" + requestLine()
+          + ", attempts=" + attempts
+          + ", firstFailureMillis=" + firstFailureMillis
+          + ", ageNanos=" + ageNanos
+          + ", failure=" + failure
+          + '}';
+    }
+  }
+}
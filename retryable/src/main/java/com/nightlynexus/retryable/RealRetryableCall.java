@@ -0,0 +1,660 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * A call that is retried by a {@link RetryableCalls}. It is also the callback of each of its
+ * attempts, which decides whether to park it, and the task that delivers the outcome on the
+ * callback executor, so that delivery allocates nothing.
+ */
+final class RealRetryableCall implements RetryableCall<Object>, Callback<Object>, Runnable {
+  private static final int RESPONSE = 0;
+  private static final int FAILURE = 1;
+  private static final int FAILURE_BUT_CAN_RETRY = 2;
+  private static final AtomicIntegerFieldUpdater<RealRetryableCall> DISPATCHING =
+      AtomicIntegerFieldUpdater.newUpdater(RealRetryableCall.class, "dispatching");
+
+  final Call<Object> delegate;
+  final Executor callbackExecutor;
+  final RetryableCalls retryableCalls;
+  final RetryPolicy policy;
+  /** Records the metrics of this call's endpoint, or null if they aren't recorded. */
+  final EndpointRecorder recorder;
+  /**
+   * Whether this call has a time to live or a deadline, and when the earlier of them passes.
+   * Written before the first attempt is sent.
+   */
+  boolean expires;
+  long expiresAtNanos;
+  private volatile boolean deadlineExceeded;
+  private volatile ScheduledFuture<?> deadlineTimer;
+  private volatile Call<Object> cloned;
+  /**
+   * Tracked here rather than read from the delegate, because a hedged attempt cancels whichever
+   * copy loses, and that may be the delegate.
+   */
+  private volatile boolean canceled;
+  private boolean executed; // Guarded by this.
+  /** The thread of {@link #execute()} while it backs off, so that canceling can wake it up. */
+  private volatile Thread sleeper;
+  private volatile String host;
+  /**
+   * How many times this call has been sent. Attempts never overlap, and each one is handed to
+   * OkHttp's dispatcher after this is written, so no further synchronization is needed.
+   */
+  int attempts;
+  /**
+   * Whether this call holds a retry from the retry budget that it hasn't sent yet. Written before
+   * this call is parked or backs off.
+   */
+  boolean retryReserved;
+  /** The request this call is waiting on instead of sending its own, or null. */
+  volatile SharedCallback following;
+  /** This call's id in the {@link RetryJournal}, or 0 if it has not been journaled. */
+  volatile long journalId;
+  /** Set when this call is enqueued, before it can be parked. */
+  private RetryableCallback<Object> retryableCallback;
+  /**
+   * When the attempt in flight was sent, or 0 if it has ended or isn't timed. Written before the
+   * attempt is sent.
+   */
+  private long attemptStartNanos;
+  /** When this call was last parked. Written before it is parked. */
+  long parkedAtNanos;
+  /** When this call was first parked. Written with {@link #firstParkedAtMillis}. */
+  long firstParkedAtNanos;
+  /** When this call was first parked, in wall-clock milliseconds, or 0 if it never was. */
+  long firstParkedAtMillis;
+  /** 1 while this call is waiting to run on the callback executor, 0 otherwise. */
+  volatile int dispatching;
+  // The outcome to deliver when this call runs on the callback executor. Written before this call
+  // is handed to the executor.
+  private int pendingSignal;
+  private Response<Object> pendingResponse;
+  private Throwable pendingFailure;
+
+  RealRetryableCall(Call<Object> delegate, Executor callbackExecutor,
+      RetryableCalls retryableCalls, RetryPolicy policy, EndpointRecorder recorder) {
+    this.delegate = delegate;
+    this.callbackExecutor = callbackExecutor;
+    this.retryableCalls = retryableCalls;
+    this.policy = policy;
+    this.recorder = recorder;
+  }
+
+  String host() {
+    String host = this.host;
+    if (host == null) {
+      host = delegate.request().url().host();
+      this.host = host;
+    }
+    return host;
+  }
+
+  boolean isExpired(long nowNanos) {
+    return expires && expiresAtNanos - nowNanos <= 0;
+  }
+
+  boolean isExpired() {
+    return expires && expiresAtNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Sends a fresh copy of this call, unless its deadline has passed or its host's circuit breaker
+   * fails it immediately. If this call leads the {@code coalesced} replay, its followers are
+   * replayed along with it.
+   */
+  void retry(Callback<Object> callback, SharedCallback coalesced) {
+    if (deadlineExceeded) {
+      callback.onFailure(delegate, new InterruptedIOException("deadline exceeded"));
+      return;
+    }
+    if (retryableCalls.shortCircuit(this, callback)) return;
+    if (coalesced != null) {
+      List<RealRetryableCall> followers = coalesced.followers();
+      for (int i = 0, size = followers.size(); i < size; i++) {
+        followers.get(i).replayed();
+      }
+    }
+    replayed();
+    Call<Object> cloned = delegate.clone();
+    this.cloned = cloned;
+    attemptStarted();
+    cloned.enqueue(timed(cloned, callback));
+  }
+
+  /**
+   * Accounts for this parked call being sent again, whether by itself or as the follower of a
+   * coalesced replay.
+   */
+  private void replayed() {
+    retryableCalls.eventListener.callReplayed(this);
+    if (recorder != null) recorder.timeParked.record(System.nanoTime() - parkedAtNanos);
+    // A call short-circuited by an open breaker is sent for the first time when it is replayed.
+    if (++attempts == 1) {
+      retryableCalls.firstAttemptSent();
+    } else {
+      retryableCalls.retrySent(this);
+    }
+  }
+
+  @Override public void enqueue(RetryableCallback<Object> callback) {
+    enqueue(callback, policy.deadlineNanos);
+  }
+
+  @Override public void enqueue(RetryableCallback<Object> callback, long deadline, TimeUnit unit) {
+    if (deadline <= 0) throw new IllegalArgumentException("deadline <= 0");
+    if (!retryableCalls.hasScheduler()) {
+      throw new IllegalStateException("Deadlines require a scheduler. "
+          + "Set one with RetryableCalls.Builder.scheduler().");
+    }
+    enqueue(callback, unit.toNanos(deadline));
+  }
+
+  private void enqueue(RetryableCallback<Object> callback, long deadlineNanos) {
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already executed.");
+      executed = true;
+    }
+    this.retryableCallback = callback;
+    expireAfter(deadlineNanos);
+    if (deadlineNanos != 0L) {
+      deadlineTimer = retryableCalls.schedule(new Runnable() {
+        @Override public void run() {
+          exceedDeadline();
+        }
+      }, deadlineNanos);
+    }
+    if (retryableCalls.shortCircuit(this, this)) return;
+    attempts = 1;
+    retryableCalls.firstAttemptSent();
+    sendFirstAttempt();
+  }
+
+  /** Makes this call expire at the earlier of its time to live and {@code deadlineNanos}. */
+  private void expireAfter(long deadlineNanos) {
+    long lifetimeNanos = policy.timeToLiveNanos;
+    if (deadlineNanos != 0L && (lifetimeNanos == 0L || deadlineNanos < lifetimeNanos)) {
+      lifetimeNanos = deadlineNanos;
+    }
+    if (lifetimeNanos != 0L) {
+      expires = true;
+      expiresAtNanos = System.nanoTime() + lifetimeNanos;
+    }
+  }
+
+  /**
+   * Sends the first attempt, unless it joins an identical request already in flight. Also called
+   * when the request this call joined was abandoned by the call that sent it.
+   */
+  void sendFirstAttempt() {
+    Callback<Object> sendCallback = retryableCalls.joinInFlight(this, this);
+    if (sendCallback == null) return;
+    if (policy.hedgeDelayNanos != 0L
+        && RequestKey.isIdempotent(delegate.request(), policy.idempotency)) {
+      sendCallback = new HedgedAttempt(sendCallback);
+    }
+    attemptStarted();
+    delegate.enqueue(timed(delegate, sendCallback));
+  }
+
+  @Override public Response<Object> execute() throws IOException {
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already executed.");
+      executed = true;
+    }
+    long deadlineAtNanos = System.nanoTime() + policy.deadlineNanos;
+    expireAfter(policy.deadlineNanos);
+    Call<Object> call = null;
+    while (true) {
+      IOException failure;
+      Response<Object> unsuccessful = null;
+      if (retryableCalls.isCircuitOpen(this)) {
+        // Like a short-circuited enqueue(), this was not sent, so it doesn't use up an attempt or
+        // the retry budget.
+        failure = new CircuitBreakerOpenException(host());
+      } else {
+        if (call == null) {
+          call = delegate;
+          retryableCalls.firstAttemptSent();
+        } else {
+          call = delegate.clone();
+          cloned = call;
+          if (canceled) call.cancel();
+          retryableCalls.retrySent(this);
+        }
+        attempts++;
+        try {
+          Response<Object> response = executeAttempt(call, deadlineAtNanos);
+          attemptEnded(null);
+          if (response.isSuccessful() || !policy.retriesStatus(response.code())) {
+            retryableCalls.attemptSucceeded(this);
+            if (recorder != null && response.isSuccessful()) {
+              recorder.attemptsToSuccess.record(attempts);
+            }
+            retryableCalls.eventListener.callEnd(this, attempts, response);
+            return response;
+          }
+          // The host is up, but asked us to come back later.
+          retryableCalls.attemptFailed(this);
+          unsuccessful = response;
+          failure = new RetryableStatusException(response);
+        } catch (IOException e) {
+          attemptEnded(e);
+          if (canceled) throw e;
+          if (isExpired()) {
+            gaveUp(e);
+            throw e;
+          }
+          retryableCalls.attemptFailed(this);
+          failure = e;
+        } catch (RuntimeException | Error e) {
+          // The host answered; the failure is in handling its response.
+          attemptEnded(e);
+          retryableCalls.attemptSucceeded(this);
+          gaveUp(e);
+          throw e;
+        }
+      }
+      long delayNanos = BackoffScheduler.delayNanos(this, failure);
+      if (isExpired(System.nanoTime() + delayNanos) || !retryableCalls.reserveRetry(this)) {
+        // Out of attempts, or the deadline would pass before the next one is sent.
+        if (unsuccessful != null) {
+          retryableCalls.eventListener.callEnd(this, attempts, unsuccessful);
+          return unsuccessful;
+        }
+        gaveUp(failure);
+        throw failure;
+      }
+      sleep(delayNanos);
+      if (canceled) throw new IOException("Canceled");
+    }
+  }
+
+  /**
+   * Sends {@code call} on this thread, canceling it if it outlasts the attempt timeout or the
+   * deadline. A time to live doesn't cut an attempt short; it only stops the next one.
+   */
+  private Response<Object> executeAttempt(Call<Object> call, long deadlineAtNanos)
+      throws IOException {
+    attemptStarted();
+    long timeoutNanos = policy.attemptTimeoutNanos;
+    boolean deadlineFirst = false;
+    if (policy.deadlineNanos != 0L) {
+      long remainingNanos = deadlineAtNanos - System.nanoTime();
+      if (timeoutNanos == 0L || remainingNanos < timeoutNanos) {
+        timeoutNanos = remainingNanos;
+        deadlineFirst = true;
+      }
+    }
+    if (timeoutNanos == 0L) return call.execute();
+    AttemptTimer attemptTimer = new AttemptTimer(call);
+    ScheduledFuture<?> timer = retryableCalls.schedule(attemptTimer, timeoutNanos);
+    try {
+      return call.execute();
+    } catch (IOException e) {
+      if (!attemptTimer.fired || canceled) throw e;
+      throw new InterruptedIOException(deadlineFirst ? "deadline exceeded" : "timeout");
+    } finally {
+      timer.cancel(false);
+    }
+  }
+
+  /**
+   * Waits out a backoff between executed attempts. Returns early if this call is canceled. Parks
+   * rather than waiting on a monitor, which would pin a virtual thread to its carrier.
+   */
+  private void sleep(long nanos) throws InterruptedIOException {
+    Thread thread = Thread.currentThread();
+    sleeper = thread;
+    try {
+      long endNanos = System.nanoTime() + nanos;
+      for (long remaining = nanos; remaining > 0L && !canceled;
+          remaining = endNanos - System.nanoTime()) {
+        LockSupport.parkNanos(this, remaining);
+        if (thread.isInterrupted()) throw new InterruptedIOException("interrupted");
+      }
+    } finally {
+      sleeper = null;
+    }
+  }
+
+  /** Times the attempt being sent, if anyone is listening or recording. */
+  private void attemptStarted() {
+    RetryEventListener eventListener = retryableCalls.eventListener;
+    if (eventListener == RetryEventListener.NONE && recorder == null) return;
+    attemptStartNanos = System.nanoTime();
+    eventListener.attemptStart(this, attempts);
+  }
+
+  /**
+   * Reports the end of the attempt started by {@link #attemptStarted()}. Does nothing for an
+   * outcome that wasn't sent, like a short-circuit or a result shared by another call.
+   */
+  private void attemptEnded(Throwable failure) {
+    RetryEventListener eventListener = retryableCalls.eventListener;
+    if (eventListener == RetryEventListener.NONE && recorder == null) return;
+    long startNanos = attemptStartNanos;
+    if (startNanos == 0L) return;
+    attemptStartNanos = 0L;
+    long tookNanos = System.nanoTime() - startNanos;
+    if (recorder != null) recorder.attemptEnded(attempts, tookNanos);
+    if (failure == null) {
+      eventListener.attemptEnd(this, attempts, tookNanos);
+    } else {
+      eventListener.attemptFailed(this, attempts, failure, tookNanos);
+    }
+  }
+
+  private void gaveUp(Throwable t) {
+    retryableCalls.eventListener.callGaveUp(this, t);
+    if (recorder != null) recorder.failures.incrementAndGet();
+  }
+
+  /** Stops retrying this parked call and delivers {@code t} to its callback. */
+  void giveUp(Throwable t) {
+    fail(t);
+  }
+
+  /**
+   * Fails this call now. A call that is parked, waiting for a replay slot, or waiting on another
+   * call's request is failed right here; an attempt in flight is canceled, and fails when it
+   * completes.
+   */
+  void exceedDeadline() {
+    deadlineExceeded = true;
+    SharedCallback following = this.following;
+    if (retryableCalls.removeCall(this)
+        || retryableCalls.removeWaitingCall(this)
+        || (following != null && following.removeFollower(this))) {
+      fail(new InterruptedIOException("deadline exceeded"));
+    } else {
+      cancelAttempt();
+    }
+  }
+
+  /** Returns true if this call stopped its own attempt: it was canceled, or its deadline passed. */
+  boolean isAbandoned() {
+    return canceled || deadlineExceeded;
+  }
+
+  private void cancelAttempt() {
+    delegate.cancel();
+    Call<Object> cloned = this.cloned;
+    if (cloned != null) cloned.cancel();
+  }
+
+  private Callback<Object> timed(Call<Object> call, Callback<Object> callback) {
+    return policy.attemptTimeoutNanos == 0L ? callback : new TimedAttempt(call, callback);
+  }
+
+  @Override public synchronized boolean isExecuted() {
+    return executed;
+  }
+
+  @Override public void cancel() {
+    canceled = true;
+    retryableCalls.eventListener.callCanceled(this);
+    retryableCalls.removeCall(RealRetryableCall.this);
+    cancelAttempt();
+    cancelDeadline();
+    Thread sleeper = this.sleeper;
+    if (sleeper != null) LockSupport.unpark(sleeper);
+  }
+
+  private void cancelDeadline() {
+    ScheduledFuture<?> deadlineTimer = this.deadlineTimer;
+    if (deadlineTimer != null) deadlineTimer.cancel(false);
+  }
+
+  @Override public boolean isCanceled() {
+    return canceled;
+  }
+
+  @Override public RealRetryableCall clone() {
+    return new RealRetryableCall(delegate.clone(), callbackExecutor, retryableCalls, policy,
+        recorder);
+  }
+
+  @Override public Request request() {
+    return delegate.request();
+  }
+
+  /** Cancels an executed attempt that takes longer than it is allowed. */
+  private static final class AttemptTimer implements Runnable {
+    private final Call<Object> call;
+    volatile boolean fired;
+
+    AttemptTimer(Call<Object> call) {
+      this.call = call;
+    }
+
+    @Override public void run() {
+      fired = true;
+      call.cancel();
+    }
+  }
+
+  /**
+   * Cancels {@code call} if it takes longer than the policy's attempt timeout. Each copy of a
+   * hedged attempt is timed on its own.
+   */
+  private final class TimedAttempt implements Callback<Object>, Runnable {
+    private final Call<Object> call;
+    private final Callback<Object> callback;
+    private final ScheduledFuture<?> timer;
+    private volatile boolean timedOut;
+
+    TimedAttempt(Call<Object> call, Callback<Object> callback) {
+      this.call = call;
+      this.callback = callback;
+      this.timer = retryableCalls.schedule(this, policy.attemptTimeoutNanos);
+    }
+
+    @Override public void run() {
+      timedOut = true;
+      call.cancel();
+    }
+
+    @Override public void onResponse(Call<Object> call, Response<Object> response) {
+      timer.cancel(false);
+      callback.onResponse(call, response);
+    }
+
+    @Override public void onFailure(Call<Object> call, Throwable t) {
+      timer.cancel(false);
+      if (timedOut && !canceled && !deadlineExceeded) {
+        // Like OkHttp's own timeouts, so the attempt is parked like any other that timed out.
+        t = new InterruptedIOException("timeout");
+      }
+      callback.onFailure(call, t);
+    }
+  }
+
+  /**
+   * Sends a second copy of the first attempt if the first hasn't completed within the hedge delay.
+   * The first successful response wins and the other copy is canceled. If neither succeeds, the
+   * last outcome is passed on, preferring a response to a failure. Either way, {@code callback}
+   * hears about the attempt once.
+   */
+  private final class HedgedAttempt implements Callback<Object>, Runnable {
+    private final Callback<Object> callback;
+    private final ScheduledFuture<?> timer;
+    private int outstanding = 1; // Guarded by this.
+    private boolean completed; // Guarded by this.
+    private Response<Object> unsuccessful; // Guarded by this.
+
+    HedgedAttempt(Callback<Object> callback) {
+      this.callback = callback;
+      this.timer = retryableCalls.schedule(this, policy.hedgeDelayNanos);
+    }
+
+    @Override public void run() {
+      Call<Object> hedge;
+      synchronized (this) {
+        if (completed || canceled || !retryableCalls.tryHedge()) return;
+        outstanding++;
+        hedge = delegate.clone();
+        cloned = hedge;
+      }
+      if (canceled) hedge.cancel();
+      hedge.enqueue(timed(hedge, this));
+    }
+
+    @Override public void onResponse(Call<Object> call, Response<Object> response) {
+      boolean cancelOther;
+      synchronized (this) {
+        if (completed) return;
+        if (!response.isSuccessful() && outstanding > 1) {
+          // The other copy may still succeed.
+          outstanding--;
+          unsuccessful = response;
+          return;
+        }
+        completed = true;
+        cancelOther = outstanding > 1;
+      }
+      timer.cancel(false);
+      if (cancelOther) {
+        Call<Object> other = call == delegate ? cloned : delegate;
+        other.cancel();
+      }
+      callback.onResponse(call, response);
+    }
+
+    @Override public void onFailure(Call<Object> call, Throwable t) {
+      Response<Object> response;
+      synchronized (this) {
+        if (completed) return;
+        // The other copy may still succeed.
+        if (--outstanding > 0) return;
+        completed = true;
+        response = unsuccessful;
+      }
+      timer.cancel(false);
+      if (response != null) {
+        callback.onResponse(call, response);
+      } else {
+        callback.onFailure(call, t);
+      }
+    }
+  }
+
+  /** Receives the outcome of every attempt of this call, and decides whether to park it. */
+  @Override public void onResponse(Call<Object> call, Response<Object> response) {
+    attemptEnded(null);
+    if (deadlineExceeded && !canceled) {
+      // A copy sent just before the deadline passed can still answer after it.
+      ResponseBody errorBody = response.errorBody();
+      if (errorBody != null) errorBody.close();
+      fail(new InterruptedIOException("deadline exceeded"));
+      return;
+    }
+    if (!response.isSuccessful() && policy.retriesStatus(response.code()) && !canceled) {
+      // The host is up, but asked us to come back later.
+      retryableCalls.attemptFailed(this);
+      RetryableStatusException e = new RetryableStatusException(response);
+      if (retryableCalls.reserveRetry(this) && retryableCalls.addCall(this, this, e)) {
+        deliver(FAILURE_BUT_CAN_RETRY, null, e);
+        return;
+      }
+      // Out of attempts. The response is still the best answer we have.
+    } else {
+      retryableCalls.attemptSucceeded(this);
+    }
+    retryableCalls.removeCall(this);
+    cancelDeadline();
+    if (recorder != null && response.isSuccessful()) recorder.attemptsToSuccess.record(attempts);
+    retryableCalls.eventListener.callEnd(this, attempts, response);
+    deliver(RESPONSE, response, null);
+  }
+
+  @Override public void onFailure(Call<Object> call, Throwable t) {
+    attemptEnded(t);
+    if (canceled) {
+      deliver(FAILURE, null, t);
+    } else if (deadlineExceeded) {
+      fail(new InterruptedIOException("deadline exceeded"));
+    } else {
+      if (t instanceof IOException) {
+        if (!(t instanceof CircuitBreakerOpenException)) {
+          retryableCalls.attemptFailed(this);
+        }
+      } else {
+        // The host answered; the failure is in handling its response.
+        retryableCalls.attemptSucceeded(this);
+      }
+      if (t instanceof IOException && retryableCalls.reserveRetry(this)
+          && retryableCalls.addCall(this, this, (IOException) t)) {
+        deliver(FAILURE_BUT_CAN_RETRY, null, t);
+      } else {
+        fail(t);
+      }
+    }
+  }
+
+  private void fail(Throwable t) {
+    gaveUp(t);
+    retryableCalls.removeCall(this);
+    cancelDeadline();
+    deliver(FAILURE, null, t);
+  }
+
+  private void deliver(final int signal, final Response<Object> response,
+      final Throwable failure) {
+    if (callbackExecutor == null) {
+      dispatch(signal, response, failure, false);
+    } else if (DISPATCHING.compareAndSet(this, 0, 1)) {
+      pendingSignal = signal;
+      pendingResponse = response;
+      pendingFailure = failure;
+      callbackExecutor.execute(this);
+    } else {
+      // The previous outcome is still waiting for the executor. This takes a parked call being
+      // retried and completing before then, so it is rare enough to allocate for.
+      callbackExecutor.execute(new Runnable() {
+        @Override public void run() {
+          dispatch(signal, response, failure, true);
+        }
+      });
+    }
+  }
+
+  @Override public void run() {
+    int signal = pendingSignal;
+    Response<Object> response = pendingResponse;
+    Throwable failure = pendingFailure;
+    pendingResponse = null;
+    pendingFailure = null;
+    dispatching = 0;
+    dispatch(signal, response, failure, true);
+  }
+
+  private void dispatch(int signal, Response<Object> response, Throwable failure,
+      boolean onExecutor) {
+    if (signal == RESPONSE) {
+      if (onExecutor && canceled) {
+        // Emulate OkHttp's behavior of delivering an IOException on cancellation.
+        retryableCallback.onFailure(this, new IOException("Canceled"));
+      } else {
+        retryableCallback.onResponse(this, response);
+      }
+    } else if (signal == FAILURE_BUT_CAN_RETRY && !(onExecutor && canceled)) {
+      retryableCallback.onFailureButCanRetry(this, (IOException) failure);
+    } else {
+      retryableCallback.onFailure(this, failure);
+    }
+  }
+}
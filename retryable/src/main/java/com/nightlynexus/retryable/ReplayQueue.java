@@ -0,0 +1,270 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Replays parked calls with at most {@code maxConcurrentReplays} of them in flight. The next
+ * waiting call is released as soon as a replayed call completes, so recovery after an outage runs
+ * as fast as the window allows without sending every parked call at once.
+ *
+ * <p>With an {@link AdaptiveLimit}, the window is instead sized by how the replayed calls fare,
+ * so recovery runs as fast as the backend can take.
+ */
+final class ReplayQueue {
+  private final int maxConcurrentReplays;
+  private final AdaptiveLimit adaptiveLimit;
+  private final boolean coalesceReplays;
+  private final ConcurrentLinkedDeque<ParkedCall> waiting = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger promoteRequests = new AtomicInteger();
+
+  ReplayQueue(int maxConcurrentReplays, AdaptiveLimit adaptiveLimit, boolean coalesceReplays) {
+    this.maxConcurrentReplays = maxConcurrentReplays;
+    this.adaptiveLimit = adaptiveLimit;
+    this.coalesceReplays = coalesceReplays;
+  }
+
+  /**
+   * Replays {@code calls}. A call that throws while it is being sent is failed with what it threw,
+   * and the others are still replayed. The first such exception is then rethrown.
+   */
+  void replay(List<ParkedCall> calls) {
+    List<ParkedCall> expired = new ArrayList<>(0);
+    calls = dropExpired(calls, expired);
+    RuntimeException thrown = null;
+    for (int i = 0, size = expired.size(); i < size; i++) {
+      try {
+        expired.get(i).expire();
+      } catch (RuntimeException e) {
+        if (thrown == null) thrown = e;
+      }
+    }
+    if (coalesceReplays) {
+      calls = coalesce(calls);
+    }
+    if (adaptiveLimit == null && maxConcurrentReplays == Integer.MAX_VALUE) {
+      for (int i = 0, size = calls.size(); i < size; i++) {
+        ParkedCall parked = calls.get(i);
+        RuntimeException e = retry(parked, parked.callback);
+        if (thrown == null) thrown = e;
+      }
+    } else {
+      waiting.addAll(calls);
+      try {
+        promote();
+      } catch (RuntimeException e) {
+        if (thrown == null) thrown = e;
+      }
+    }
+    if (thrown != null) throw thrown;
+  }
+
+  /**
+   * Sends {@code parked}. If that throws, {@code callback} is failed with the exception rather than
+   * left waiting, and the exception is returned for the caller to rethrow once the other calls are
+   * sent. Through {@code callback}, the followers of a coalesced call are failed too.
+   */
+  private static RuntimeException retry(ParkedCall parked, Callback<Object> callback) {
+    SharedCallback coalesced =
+        parked.callback instanceof SharedCallback ? (SharedCallback) parked.callback : null;
+    try {
+      parked.call.retry(callback, coalesced);
+      return null;
+    } catch (RuntimeException e) {
+      callback.onFailure(parked.call.delegate, e);
+      return e;
+    }
+  }
+
+  /**
+   * Moves the calls that have outlived their time to live to {@code expired}, and returns the
+   * others.
+   */
+  private static List<ParkedCall> dropExpired(List<ParkedCall> calls, List<ParkedCall> expired) {
+    long now = System.nanoTime();
+    List<ParkedCall> live = null;
+    for (int i = 0, size = calls.size(); i < size; i++) {
+      ParkedCall parked = calls.get(i);
+      if (parked.call.isExpired(now)) {
+        if (live == null) {
+          live = new ArrayList<>(calls.subList(0, i));
+        }
+        expired.add(parked);
+      } else if (live != null) {
+        live.add(parked);
+      }
+    }
+    return live == null ? calls : live;
+  }
+
+  /**
+   * Collapses calls with equal idempotent requests into the oldest of them. Only that call is
+   * sent, and its result is delivered to all of them.
+   */
+  private static List<ParkedCall> coalesce(List<ParkedCall> calls) {
+    if (calls.size() < 2) return calls;
+    Map<RequestKey, SharedCallback> leaders = new HashMap<>();
+    List<ParkedCall> coalesced = new ArrayList<>(calls.size());
+    for (int i = 0, size = calls.size(); i < size; i++) {
+      ParkedCall parked = calls.get(i);
+      RequestKey key = RequestKey.of(parked.call.request(), parked.call.policy.idempotency);
+      if (key == null) {
+        coalesced.add(parked);
+        continue;
+      }
+      SharedCallback leader = leaders.get(key);
+      if (leader == null) {
+        leader = new SharedCallback(parked.callback);
+        leaders.put(key, leader);
+        coalesced.add(
+            new ParkedCall(parked.sequence, parked.call, leader, parked.failure,
+                parked.retryAtNanos));
+      } else {
+        // The follower is accounted for as replayed when its leader is sent.
+        leader.addFollower(parked.call, parked.callback);
+      }
+    }
+    return coalesced;
+  }
+
+  /**
+   * Returns true if {@code call} was waiting for a slot, in which case it no longer is and the
+   * caller owns it. If it was leading a coalesced replay, its first follower leads in its place.
+   */
+  boolean remove(RealRetryableCall call) {
+    if (waiting.isEmpty()) return false;
+    for (ParkedCall parked : waiting) {
+      if (parked.call != call) continue;
+      if (!waiting.remove(parked)) return false;
+      if (handOver(parked)) promote();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if {@code parked} was leading a coalesced replay that has followers, in which
+   * case the first of them now leads it at the front of the queue.
+   */
+  private boolean handOver(ParkedCall parked) {
+    if (!(parked.callback instanceof SharedCallback)) return false;
+    RealRetryableCall follower = ((SharedCallback) parked.callback).promoteFollower();
+    if (follower == null) return false;
+    waiting.offerFirst(new ParkedCall(parked.sequence, follower, parked.callback, parked.failure,
+        parked.retryAtNanos));
+    return true;
+  }
+
+  /** Drops the calls waiting to be replayed, and returns them. */
+  List<ParkedCall> clear() {
+    List<ParkedCall> cleared = new ArrayList<>();
+    ParkedCall parked;
+    while ((parked = waiting.poll()) != null) {
+      cleared.add(parked);
+    }
+    return cleared;
+  }
+
+  /**
+   * Sends waiting calls while the window has room. Only one thread promotes at a time; a request to
+   * promote that arrives meanwhile, including one made synchronously by a call that completes
+   * without touching the network, makes that thread loop again instead of recursing.
+   */
+  private void promote() {
+    if (promoteRequests.getAndIncrement() != 0) return;
+    RuntimeException thrown = null;
+    int requests = 1;
+    do {
+      while (!waiting.isEmpty() && inFlight.get() < limit()) {
+        inFlight.incrementAndGet();
+        ParkedCall parked = waiting.poll();
+        if (parked == null) {
+          inFlight.decrementAndGet();
+          continue;
+        }
+        boolean canceled = parked.call.isCanceled();
+        if (canceled || parked.call.isExpired()) {
+          // It was canceled or outlived its time to live while it waited.
+          inFlight.decrementAndGet();
+          handOver(parked);
+          if (!canceled) {
+            try {
+              parked.expire();
+            } catch (RuntimeException e) {
+              if (thrown == null) thrown = e;
+            }
+          }
+          continue;
+        }
+        ReplayCallback callback = new ReplayCallback(parked.callback);
+        RuntimeException e = retry(parked, callback);
+        if (e != null) {
+          callback.finish();
+          if (thrown == null) thrown = e;
+        }
+      }
+      requests = promoteRequests.addAndGet(-requests);
+    } while (requests != 0);
+    if (thrown != null) throw thrown;
+  }
+
+  private int limit() {
+    return adaptiveLimit == null ? maxConcurrentReplays : adaptiveLimit.get();
+  }
+
+  void replayFinished() {
+    inFlight.decrementAndGet();
+    promote();
+  }
+
+  private final class ReplayCallback implements Callback<Object> {
+    private final Callback<Object> delegate;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    ReplayCallback(Callback<Object> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public void onResponse(Call<Object> call, Response<Object> response) {
+      if (adaptiveLimit != null) {
+        int code = response.code();
+        adaptiveLimit.onSample(startNanos, System.nanoTime() - startNanos,
+            code == 429 || code >= 500);
+      }
+      try {
+        delegate.onResponse(call, response);
+      } finally {
+        finish();
+      }
+    }
+
+    @Override public void onFailure(Call<Object> call, Throwable t) {
+      // A call that was canceled or stopped by a circuit breaker says nothing about the backend.
+      if (adaptiveLimit != null && t instanceof IOException
+          && !(t instanceof CircuitBreakerOpenException) && !call.isCanceled()) {
+        adaptiveLimit.onSample(startNanos, System.nanoTime() - startNanos, true);
+      }
+      try {
+        delegate.onFailure(call, t);
+      } finally {
+        finish();
+      }
+    }
+
+    /** Frees this replay's slot in the window, once. */
+    void finish() {
+      if (finished.compareAndSet(false, true)) replayFinished();
+    }
+  }
+}
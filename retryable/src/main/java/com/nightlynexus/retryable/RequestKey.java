@@ -0,0 +1,84 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.ByteString;
+
+/** Identifies requests that are safe to send once on behalf of several calls. */
+final class RequestKey {
+  private final String method;
+  private final HttpUrl url;
+  private final Headers headers;
+  private final MediaType contentType;
+  private final ByteString body;
+
+  private RequestKey(String method, HttpUrl url, Headers headers, MediaType contentType,
+      ByteString body) {
+    this.method = method;
+    this.url = url;
+    this.headers = headers;
+    this.contentType = contentType;
+    this.body = body;
+  }
+
+  /**
+   * Returns the key for {@code request}, or null if it may have side effects and so must be sent
+   * once per call. Unless {@code idempotency} says otherwise, only {@code GET} and {@code HEAD}
+   * requests are free of side effects.
+   */
+  static RequestKey of(Request request, Retry.Idempotency idempotency) {
+    if (!isIdempotent(request, idempotency)) return null;
+    String method = request.method();
+    RequestBody requestBody = request.body();
+    if (requestBody == null) {
+      return new RequestKey(method, request.url(), request.headers(), null, null);
+    }
+    Buffer buffer = new Buffer();
+    try {
+      requestBody.writeTo(buffer);
+    } catch (IOException e) {
+      // Let the request fail on its own when it is sent.
+      return null;
+    }
+    return new RequestKey(method, request.url(), request.headers(), requestBody.contentType(),
+        buffer.readByteString());
+  }
+
+  /** Returns true if sending {@code request} more than once has no further effect. */
+  static boolean isIdempotent(Request request, Retry.Idempotency idempotency) {
+    switch (idempotency) {
+      case IDEMPOTENT:
+        return true;
+      case NOT_IDEMPOTENT:
+        return false;
+      default:
+        String method = request.method();
+        return method.equals("GET") || method.equals("HEAD");
+    }
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof RequestKey)) return false;
+    RequestKey other = (RequestKey) o;
+    return method.equals(other.method)
+        && url.equals(other.url)
+        && headers.equals(other.headers)
+        && (contentType == null ? other.contentType == null : contentType.equals(other.contentType))
+        && (body == null ? other.body == null : body.equals(other.body));
+  }
+
+  @Override public int hashCode() {
+    int result = method.hashCode();
+    result = 31 * result + url.hashCode();
+    result = 31 * result + headers.hashCode();
+    result = 31 * result + (contentType != null ? contentType.hashCode() : 0);
+    result = 31 * result + (body != null ? body.hashCode() : 0);
+    return result;
+  }
+}
@@ -0,0 +1,111 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Configures how the calls of a service method are retried. Elements left at their defaults use
+ * the settings of the {@link RetryableCalls.Builder}. The annotation is read once, when Retrofit
+ * creates the method's call adapter.
+ * <pre><code>
+ * &#64;Retry(maxAttempts = 5, statusCodes = 503, priority = 10)
+ * &#64;PUT("profile")
+ * RetryableCall&lt;Profile&gt; updateProfile(&#64;Body Profile profile);
+ * </code></pre>
+ */
+@Documented
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Retry {
+  /**
+   * How many times a call is sent, including its first attempt. 0 uses
+   * {@link RetryableCalls.Builder#maxAttempts(int)}.
+   */
+  int maxAttempts() default 0;
+
+  /**
+   * The automatic retry delay after the first failed attempt, in {@link #backoffUnit()}. 0 uses
+   * {@link RetryableCalls.Builder#backoff(long, long, TimeUnit)}.
+   */
+  long initialBackoff() default 0;
+
+  /** The longest automatic retry delay, in {@link #backoffUnit()}. 0 uses the builder's. */
+  long maxBackoff() default 0;
+
+  TimeUnit backoffUnit() default TimeUnit.MILLISECONDS;
+
+  /**
+   * HTTP status codes that park a call like a network failure. The call's callback receives
+   * {@link RetryableCallback#onFailureButCanRetry} with a {@link RetryableStatusException}. Once
+   * the call is out of attempts, the last response is delivered to
+   * {@link RetryableCallback#onResponse}. Empty uses
+   * {@link RetryableCalls.Builder#retryOnStatus(int...)}.
+   */
+  int[] statusCodes() default {};
+
+  /** Whether the method's requests may be shared by several calls. */
+  Idempotency idempotency() default Idempotency.DEFAULT;
+
+  /**
+   * Calls with a lower priority are evicted first when parked calls overflow with
+   * {@link RetryableCalls.OverflowPolicy#EVICT_LOWEST_PRIORITY}.
+   */
+  int priority() default 0;
+
+  /**
+   * If a call's first attempt hasn't completed after this long, in {@link #hedgeDelayUnit()}, a
+   * second copy is sent alongside it. The first successful response is delivered and the other
+   * copy is canceled. Choose a delay near the method's usual tail latency, such as its 95th
+   * percentile, so that only the slowest attempts are hedged. Only idempotent requests are
+   * hedged, and hedged copies count against the
+   * {@linkplain RetryableCalls.Builder#retryBudget retry budget}. Requires a
+   * {@linkplain RetryableCalls.Builder#scheduler scheduler}. 0, the default, disables hedging.
+   */
+  long hedgeDelay() default 0;
+
+  TimeUnit hedgeDelayUnit() default TimeUnit.MILLISECONDS;
+
+  /**
+   * How long a call may take from when it is enqueued until it completes, across all of its
+   * attempts, in {@link #timeoutUnit()}. When the deadline passes, an attempt in flight is
+   * canceled, and the call is delivered to {@link RetryableCallback#onFailure} with an
+   * {@link java.io.InterruptedIOException}. Requires a
+   * {@linkplain RetryableCalls.Builder#scheduler scheduler}. 0, the default, means no deadline.
+   *
+   * @see RetryableCall#enqueue(RetryableCallback, long, TimeUnit)
+   */
+  long deadline() default 0;
+
+  /**
+   * How long a single attempt may take, in {@link #timeoutUnit()}. An attempt that takes longer
+   * is canceled and parked like one that failed with an {@link java.io.InterruptedIOException},
+   * so a hung upstream doesn't hold the call or its connection. Requires a
+   * {@linkplain RetryableCalls.Builder#scheduler scheduler}. 0, the default, means no timeout
+   * beyond OkHttp's own.
+   */
+  long attemptTimeout() default 0;
+
+  TimeUnit timeoutUnit() default TimeUnit.MILLISECONDS;
+
+  /**
+   * Decides whether identical requests are sent once on behalf of several calls, when
+   * {@linkplain RetryableCalls.Builder#coalesceReplays(boolean) coalescing} or
+   * {@linkplain RetryableCalls.Builder#deduplicateInFlight(boolean) deduplication} is enabled.
+   */
+  enum Idempotency {
+    /** Only {@code GET} and {@code HEAD} requests are shared. */
+    DEFAULT,
+    /**
+     * Requests with any method are shared, if their bodies are equal too. Use this for methods
+     * like {@code PUT} whose repeated requests have no further effect.
+     */
+    IDEMPOTENT,
+    /** Requests are never shared, not even {@code GET} requests. */
+    NOT_IDEMPOTENT
+  }
+}
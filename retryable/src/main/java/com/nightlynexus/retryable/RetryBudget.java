@@ -0,0 +1,74 @@
+package com.nightlynexus.retryable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caps retries at a fraction of first attempts over a sliding window, so that retries cannot
+ * multiply the load on a backend that is already struggling. A few retries are always allowed,
+ * so that a quiet client can still recover from a blip.
+ *
+ * <p>The window is split into buckets of counters, each stamped with the interval it counts. A
+ * bucket whose stamp is stale is reset by whichever thread next lands in it. Counting is not
+ * locked; the price is that an increment racing with a reset can be lost, which only makes the
+ * budget slightly approximate. Taking a retry is locked, so that a burst of failures cannot all
+ * take the last one.
+ */
+final class RetryBudget {
+  private static final int BUCKETS = 10;
+
+  private final double maxRetryRatio;
+  private final int minRetries;
+  private final long bucketNanos;
+  private final long originNanos = System.nanoTime();
+  private final AtomicLongArray stamps = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray requests = new AtomicLongArray(BUCKETS);
+  private final AtomicLongArray retries = new AtomicLongArray(BUCKETS);
+
+  RetryBudget(double maxRetryRatio, int minRetries, long windowNanos) {
+    this.maxRetryRatio = maxRetryRatio;
+    this.minRetries = minRetries;
+    this.bucketNanos = Math.max(1L, windowNanos / BUCKETS);
+  }
+
+  /** Records that a call was sent for the first time. */
+  void recordRequest() {
+    requests.incrementAndGet(bucket(interval()));
+  }
+
+  /** Takes one retry from the budget and returns true, or returns false if it is spent. */
+  synchronized boolean tryAcquire() {
+    if (!canRetry()) return false;
+    retries.incrementAndGet(bucket(interval()));
+    return true;
+  }
+
+  /** Returns true if one more retry would stay within the budget. */
+  private boolean canRetry() {
+    long interval = interval();
+    long requestCount = 0;
+    long retryCount = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (interval - stamps.get(i) < BUCKETS) {
+        requestCount += requests.get(i);
+        retryCount += retries.get(i);
+      }
+    }
+    return retryCount < minRetries + maxRetryRatio * requestCount;
+  }
+
+  private long interval() {
+    // Offset by a whole window so that a bucket that was never used, stamped 0, is stale.
+    return (System.nanoTime() - originNanos) / bucketNanos + BUCKETS;
+  }
+
+  /** Returns the index of the bucket for {@code interval}, resetting it if it is stale. */
+  private int bucket(long interval) {
+    int index = (int) (interval % BUCKETS);
+    long stamp = stamps.get(index);
+    if (stamp < interval && stamps.compareAndSet(index, stamp, interval)) {
+      requests.set(index, 0L);
+      retries.set(index, 0L);
+    }
+    return index;
+  }
+}
@@ -0,0 +1,74 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import retrofit2.Response;
+
+/**
+ * Listener for the lifecycle of retryable calls. Extend this class to count calls, attempts and
+ * parked calls, or to time attempts.
+ *
+ * <p>All methods are invoked on whichever thread the event happens on, so implementations must be
+ * thread-safe and should return quickly. Events of different calls may interleave, and a call's
+ * {@link #callParked} may be reported after it is replayed by another thread.
+ *
+ * <p>With {@link #NONE}, no event is created or timed.
+ */
+public abstract class RetryEventListener {
+  public static final RetryEventListener NONE = new RetryEventListener() {
+  };
+
+  /**
+   * Invoked when attempt number {@code attempt} of {@code call} is sent. Hedged copies of an
+   * attempt are part of that attempt.
+   */
+  public void attemptStart(RetryableCall<?> call, int attempt) {
+  }
+
+  /** Invoked when an attempt got any response, {@code tookNanos} after it started. */
+  public void attemptEnd(RetryableCall<?> call, int attempt, long tookNanos) {
+  }
+
+  /** Invoked when an attempt failed with {@code t}, {@code tookNanos} after it started. */
+  public void attemptFailed(RetryableCall<?> call, int attempt, Throwable t, long tookNanos) {
+  }
+
+  /** Invoked when {@code call} is parked to be retried after failing with {@code failure}. */
+  public void callParked(RetryableCall<?> call, IOException failure) {
+  }
+
+  /** Invoked when parked {@code call} is sent again. */
+  public void callReplayed(RetryableCall<?> call) {
+  }
+
+  /**
+   * Invoked when parked {@code call} is evicted to make room for other parked calls. It is
+   * {@linkplain #callGaveUp given up on} right after.
+   */
+  public void callEvicted(RetryableCall<?> call) {
+  }
+
+  /**
+   * Invoked when {@code call} completes with {@code response} after {@code attempts} attempts. The
+   * response is unsuccessful if it is the last one received for a status code that is retried.
+   */
+  public void callEnd(RetryableCall<?> call, int attempts, Response<?> response) {
+  }
+
+  /**
+   * Invoked when {@code call} stops being retried and its callback receives {@code t}: it ran out
+   * of attempts or time, was evicted, or failed in a way that retrying cannot fix.
+   */
+  public void callGaveUp(RetryableCall<?> call, Throwable t) {
+  }
+
+  /**
+   * Invoked when parked {@code call} is dropped by {@link RetryableCalls#clearCalls()}. Its
+   * callback is not invoked again.
+   */
+  public void callCleared(RetryableCall<?> call) {
+  }
+
+  /** Invoked when {@code call} is canceled. */
+  public void callCanceled(RetryableCall<?> call) {
+  }
+}
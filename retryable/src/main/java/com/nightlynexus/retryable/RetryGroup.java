@@ -0,0 +1,24 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Puts the calls of a service method in a named group, so that they can be retried together
+ * with {@link RetryableCalls#retryGroup(String)}.
+ * <pre><code>
+ * &#64;RetryGroup("payments")
+ * &#64;POST("charges")
+ * RetryableCall&lt;Charge&gt; charge(&#64;Body ChargeRequest request);
+ * </code></pre>
+ */
+@Documented
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface RetryGroup {
+  String value();
+}
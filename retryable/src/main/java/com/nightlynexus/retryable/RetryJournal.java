@@ -0,0 +1,377 @@
+package com.nightlynexus.retryable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * An append-only log of parked requests that survives process death. Give it to
+ * {@link RetryableCalls.Builder#journal(RetryJournal)}, and every call that is parked is written
+ * here until it is delivered, fails for good, or is canceled.
+ *
+ * <p>Requests that were still pending when the journal was last closed (or when the process
+ * died) are available from {@link #recoveredRequests()} after {@linkplain #open reopening} it.
+ * Their Retrofit callbacks are gone with the old process, so send them with
+ * {@link #replayRecovered(Call.Factory, Callback)}. A recovered request stays in the journal until
+ * it gets a response.
+ *
+ * <p>Writes are buffered and synced to disk together on a background thread, so parking a call
+ * never waits for the disk. A crash can lose the writes of the last sync interval. The log is
+ * compacted once most of its records are for requests that have completed.
+ */
+public final class RetryJournal implements Closeable {
+  static final String JOURNAL_FILE = "journal";
+  static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  private static final ByteString MAGIC = ByteString.encodeUtf8("retryable-journal-1\n");
+  private static final byte PARKED = 1;
+  private static final byte DONE = 2;
+  private static final int COMPACTION_THRESHOLD = 2000;
+
+  private final File directory;
+  private final ScheduledExecutorService syncExecutor;
+  private final Object lock = new Object();
+  /**
+   * The serialized requests not yet done, keyed by id, in the order they were parked. Guarded by
+   * lock.
+   */
+  private final Map<Long, ByteString> pending = new LinkedHashMap<>();
+  /** Pending requests from a previous process, not yet resent. Guarded by lock. */
+  private final Map<Long, Request> recovered = new LinkedHashMap<>();
+  private FileOutputStream fileStream; // Guarded by lock.
+  private BufferedSink sink; // Guarded by lock.
+  private long nextId = 1; // Guarded by lock.
+  private int records; // Guarded by lock.
+  private boolean dirty; // Guarded by lock.
+  private boolean closed; // Guarded by lock.
+
+  private RetryJournal(File directory, long syncIntervalMillis) {
+    this.directory = directory;
+    this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "RetryJournal " + RetryJournal.this.directory);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    syncExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        try {
+          sync();
+        } catch (IOException ignored) {
+          // Try again on the next interval.
+        }
+      }
+    }, syncIntervalMillis, syncIntervalMillis, MILLISECONDS);
+  }
+
+  /**
+   * Opens the journal in {@code directory}, creating it if necessary, and reads the requests
+   * that were pending when it was last used. Writes are synced to disk every
+   * {@code syncInterval}.
+   */
+  public static RetryJournal open(File directory, long syncInterval, TimeUnit unit)
+      throws IOException {
+    if (syncInterval <= 0) throw new IllegalArgumentException("syncInterval <= 0");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    RetryJournal journal = new RetryJournal(directory, unit.toMillis(syncInterval));
+    try {
+      synchronized (journal.lock) {
+        journal.read();
+        // Rewrite the log, dropping completed requests and any record torn by a crash.
+        journal.compact();
+      }
+    } catch (IOException e) {
+      journal.syncExecutor.shutdown();
+      throw e;
+    }
+    return journal;
+  }
+
+  /** Returns the requests that were pending when this journal was last closed. */
+  public List<Request> recoveredRequests() {
+    synchronized (lock) {
+      return Collections.unmodifiableList(new ArrayList<>(recovered.values()));
+    }
+  }
+
+  /**
+   * Sends each {@linkplain #recoveredRequests() recovered request} with {@code callFactory}. A
+   * request that gets a response is removed from the journal before {@code callback} is invoked.
+   * One that fails stays in the journal and is sent again by the next call to this method.
+   */
+  public void replayRecovered(Call.Factory callFactory, final Callback callback) {
+    Map<Long, Request> replaying;
+    synchronized (lock) {
+      replaying = new LinkedHashMap<>(recovered);
+      recovered.clear();
+    }
+    for (final Map.Entry<Long, Request> entry : replaying.entrySet()) {
+      callFactory.newCall(entry.getValue()).enqueue(new Callback() {
+        @Override public void onResponse(Call call, Response response) throws IOException {
+          done(entry.getKey());
+          callback.onResponse(call, response);
+        }
+
+        @Override public void onFailure(Call call, IOException e) {
+          synchronized (lock) {
+            if (pending.containsKey(entry.getKey())) {
+              recovered.put(entry.getKey(), entry.getValue());
+            }
+          }
+          callback.onFailure(call, e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Records that {@code request} is parked, and returns its id, or 0 if its body could not be
+   * written. The request is serialized before taking the lock, so parking calls only contend to
+   * append their bytes.
+   */
+  long parked(Request request) {
+    ByteString serialized;
+    try {
+      serialized = serialize(request);
+    } catch (IOException e) {
+      // The call is still parked in memory; it just won't survive a restart.
+      return 0L;
+    }
+    synchronized (lock) {
+      long id = nextId++;
+      pending.put(id, serialized);
+      if (closed) return id;
+      try {
+        sink.writeByte(PARKED);
+        sink.writeLong(id);
+        sink.write(serialized);
+        records++;
+        dirty = true;
+      } catch (IOException ignored) {
+        // The record is rewritten by the next compaction.
+      }
+      return id;
+    }
+  }
+
+  /** Records that the request with {@code id} no longer needs to be sent. */
+  void done(long id) {
+    synchronized (lock) {
+      if (pending.remove(id) == null) return;
+      recovered.remove(id);
+      if (closed) return;
+      try {
+        sink.writeByte(DONE);
+        sink.writeLong(id);
+        records++;
+        dirty = true;
+      } catch (IOException ignored) {
+        // At worst, the request is sent once more after a restart.
+      }
+    }
+  }
+
+  /**
+   * Writes buffered records to disk, compacting first if the log is mostly garbage. If compaction
+   * fails, the records are still written to the old log, and the failure is thrown afterwards.
+   */
+  void sync() throws IOException {
+    FileChannel channel;
+    IOException compactionFailure = null;
+    synchronized (lock) {
+      if (closed || !dirty) return;
+      dirty = false;
+      if (records > COMPACTION_THRESHOLD && records > 2 * pending.size()) {
+        try {
+          compact();
+        } catch (IOException e) {
+          compactionFailure = e;
+          dirty = true; // Try again on the next sync.
+        }
+      }
+      sink.flush();
+      channel = fileStream.getChannel();
+    }
+    // Parking can keep appending while the disk catches up.
+    channel.force(false);
+    if (compactionFailure != null) throw compactionFailure;
+  }
+
+  @Override public void close() throws IOException {
+    syncExecutor.shutdown();
+    synchronized (lock) {
+      if (closed) return;
+      closed = true;
+      try {
+        sink.flush();
+        fileStream.getChannel().force(false);
+      } finally {
+        sink.close();
+      }
+    }
+  }
+
+  private void read() throws IOException {
+    File file = new File(directory, JOURNAL_FILE);
+    if (!file.exists()) return;
+    BufferedSource source = Okio.buffer(Okio.source(file));
+    try {
+      if (!source.rangeEquals(0, MAGIC)) throw new IOException("Not a journal: " + file);
+      source.skip(MAGIC.size());
+      while (!source.exhausted()) {
+        byte type = source.readByte();
+        long id = source.readLong();
+        if (type == PARKED) {
+          Request request = readRequest(source);
+          pending.put(id, serialize(request));
+          recovered.put(id, request);
+        } else if (type == DONE) {
+          pending.remove(id);
+          recovered.remove(id);
+        } else {
+          throw new IOException("Unexpected record type " + type + " in " + file);
+        }
+        nextId = Math.max(nextId, id + 1);
+      }
+    } catch (EOFException ignored) {
+      // The last record was torn by a crash. Everything before it is intact.
+    } finally {
+      source.close();
+    }
+  }
+
+  /**
+   * Replaces the log with one that holds only the pending requests. The new log is written and
+   * renamed into place while the old one stays open, so that if any step fails, the old log is
+   * still the one being appended to.
+   */
+  private void compact() throws IOException {
+    File temp = new File(directory, JOURNAL_FILE_TEMP);
+    FileOutputStream tempStream = new FileOutputStream(temp);
+    BufferedSink tempSink = Okio.buffer(Okio.sink(tempStream));
+    File file = new File(directory, JOURNAL_FILE);
+    try {
+      tempSink.write(MAGIC);
+      for (Map.Entry<Long, ByteString> entry : pending.entrySet()) {
+        tempSink.writeByte(PARKED);
+        tempSink.writeLong(entry.getKey());
+        tempSink.write(entry.getValue());
+      }
+      tempSink.flush();
+      tempStream.getChannel().force(false);
+      // The stream follows the file when it is renamed, so it appends to the new log.
+      if (!temp.renameTo(file)) throw new IOException("Could not rename " + temp + " to " + file);
+    } catch (IOException e) {
+      try {
+        tempSink.close();
+      } catch (IOException ignored) {
+        // Reporting e matters more.
+      }
+      temp.delete();
+      throw e;
+    }
+    BufferedSink oldSink = sink;
+    records = pending.size();
+    fileStream = tempStream;
+    sink = tempSink;
+    if (oldSink != null) {
+      try {
+        oldSink.close();
+      } catch (IOException ignored) {
+        // Its records are all in the new log.
+      }
+    }
+  }
+
+  /** Returns {@code request} as it is written after its id in a parked record. */
+  private static ByteString serialize(Request request) throws IOException {
+    // Serialize the body first so that a body that cannot be written leaves no partial record.
+    RequestBody body = request.body();
+    Buffer bodyBuffer = null;
+    if (body != null) {
+      bodyBuffer = new Buffer();
+      body.writeTo(bodyBuffer);
+    }
+    Buffer sink = new Buffer();
+    writeString(sink, request.method());
+    writeString(sink, request.url().toString());
+    Headers headers = request.headers();
+    sink.writeInt(headers.size());
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      writeString(sink, headers.name(i));
+      writeString(sink, headers.value(i));
+    }
+    if (bodyBuffer == null) {
+      sink.writeLong(-1L);
+    } else {
+      MediaType contentType = body.contentType();
+      writeString(sink, contentType != null ? contentType.toString() : "");
+      sink.writeLong(bodyBuffer.size());
+      sink.writeAll(bodyBuffer);
+    }
+    return sink.readByteString();
+  }
+
+  private static Request readRequest(BufferedSource source) throws IOException {
+    String method = readString(source);
+    HttpUrl url = HttpUrl.parse(readString(source));
+    if (url == null) throw new IOException("Malformed URL in journal");
+    Headers.Builder headers = new Headers.Builder();
+    for (int i = 0, size = source.readInt(); i < size; i++) {
+      headers.add(readString(source), readString(source));
+    }
+    RequestBody body = null;
+    long contentTypeLength = source.readLong();
+    if (contentTypeLength != -1L) {
+      String contentType = source.readUtf8(contentTypeLength);
+      long bodyLength = source.readLong();
+      body = RequestBody.create(
+          contentType.isEmpty() ? null : MediaType.parse(contentType),
+          source.readByteString(bodyLength));
+    }
+    return new Request.Builder()
+        .url(url)
+        .headers(headers.build())
+        .method(method, body)
+        .build();
+  }
+
+  private static void writeString(BufferedSink sink, String string) throws IOException {
+    ByteString bytes = ByteString.encodeUtf8(string);
+    sink.writeLong(bytes.size());
+    sink.write(bytes);
+  }
+
+  private static String readString(BufferedSource source) throws IOException {
+    return source.readUtf8(source.readLong());
+  }
+}
@@ -0,0 +1,135 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+
+/**
+ * How the calls of one service method are retried. It is resolved from the method's annotations
+ * when its call adapter is created, so that deciding what to do with an attempt's outcome needs
+ * no reflection.
+ */
+final class RetryPolicy {
+  /** The {@linkplain RetryGroup group} of the service method, or null. */
+  final String group;
+  /** How long a call may be retried after it is enqueued, or 0 to retry it indefinitely. */
+  final long timeToLiveNanos;
+  final int maxAttempts;
+  final long initialBackoffNanos;
+  final long maxBackoffNanos;
+  final Retry.Idempotency idempotency;
+  final int priority;
+  /** How long the first attempt may take before a hedged copy is sent, or 0 to never hedge. */
+  final long hedgeDelayNanos;
+  /** How long a call may take across all of its attempts, or 0 for no limit. */
+  final long deadlineNanos;
+  /** How long a single attempt may take before it is canceled and parked, or 0 for no limit. */
+  final long attemptTimeoutNanos;
+  /** Sorted. */
+  private final int[] statusCodes;
+
+  RetryPolicy(String group, long timeToLiveNanos, int maxAttempts, long initialBackoffNanos,
+      long maxBackoffNanos, int[] statusCodes, Retry.Idempotency idempotency, int priority,
+      long hedgeDelayNanos, long deadlineNanos, long attemptTimeoutNanos) {
+    this.group = group;
+    this.timeToLiveNanos = timeToLiveNanos;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+    this.statusCodes = statusCodes;
+    this.idempotency = idempotency;
+    this.priority = priority;
+    this.hedgeDelayNanos = hedgeDelayNanos;
+    this.deadlineNanos = deadlineNanos;
+    this.attemptTimeoutNanos = attemptTimeoutNanos;
+  }
+
+  /** Returns the policy for the calls of all service methods without annotations. */
+  static RetryPolicy defaults(RetryableCalls.Builder builder) {
+    return new RetryPolicy(null, builder.parkedTimeToLiveNanos, builder.maxAttempts,
+        builder.initialBackoffNanos, builder.maxBackoffNanos, builder.retryStatusCodes,
+        Retry.Idempotency.DEFAULT, 0, 0L, 0L, 0L);
+  }
+
+  /**
+   * Returns the policy for a service method with {@code annotations}, using {@code defaults} for
+   * everything they don't configure.
+   */
+  static RetryPolicy forMethod(Annotation[] annotations, RetryPolicy defaults) {
+    RetryGroup retryGroup = findAnnotation(annotations, RetryGroup.class);
+    TimeToLive timeToLive = findAnnotation(annotations, TimeToLive.class);
+    Retry retry = findAnnotation(annotations, Retry.class);
+    if (retryGroup == null && timeToLive == null && retry == null) return defaults;
+
+    String group = retryGroup == null ? defaults.group : retryGroup.value();
+    long timeToLiveNanos = defaults.timeToLiveNanos;
+    if (timeToLive != null) {
+      if (timeToLive.value() <= 0) throw new IllegalArgumentException("@TimeToLive value <= 0");
+      timeToLiveNanos = timeToLive.unit().toNanos(timeToLive.value());
+    }
+    if (retry == null) {
+      return new RetryPolicy(group, timeToLiveNanos, defaults.maxAttempts,
+          defaults.initialBackoffNanos, defaults.maxBackoffNanos, defaults.statusCodes,
+          defaults.idempotency, defaults.priority, defaults.hedgeDelayNanos,
+          defaults.deadlineNanos, defaults.attemptTimeoutNanos);
+    }
+
+    if (retry.maxAttempts() < 0) {
+      throw new IllegalArgumentException("@Retry maxAttempts < 0: " + retry.maxAttempts());
+    }
+    int maxAttempts = retry.maxAttempts() == 0 ? defaults.maxAttempts : retry.maxAttempts();
+    if (retry.initialBackoff() < 0) {
+      throw new IllegalArgumentException("@Retry initialBackoff < 0");
+    }
+    if (retry.maxBackoff() < 0) throw new IllegalArgumentException("@Retry maxBackoff < 0");
+    long initialBackoffNanos = retry.initialBackoff() == 0
+        ? defaults.initialBackoffNanos
+        : retry.backoffUnit().toNanos(retry.initialBackoff());
+    long maxBackoffNanos = retry.maxBackoff() == 0
+        ? Math.max(defaults.maxBackoffNanos, initialBackoffNanos)
+        : retry.backoffUnit().toNanos(retry.maxBackoff());
+    if (maxBackoffNanos < initialBackoffNanos) {
+      throw new IllegalArgumentException("@Retry maxBackoff < initialBackoff");
+    }
+    int[] statusCodes = defaults.statusCodes;
+    if (retry.statusCodes().length != 0) {
+      statusCodes = checkStatusCodes(retry.statusCodes().clone());
+    }
+    if (retry.hedgeDelay() < 0) throw new IllegalArgumentException("@Retry hedgeDelay < 0");
+    if (retry.hedgeDelay() != 0 && retry.idempotency() == Retry.Idempotency.NOT_IDEMPOTENT) {
+      throw new IllegalArgumentException("@Retry cannot hedge NOT_IDEMPOTENT requests");
+    }
+    long hedgeDelayNanos = retry.hedgeDelayUnit().toNanos(retry.hedgeDelay());
+    if (retry.deadline() < 0) throw new IllegalArgumentException("@Retry deadline < 0");
+    if (retry.attemptTimeout() < 0) {
+      throw new IllegalArgumentException("@Retry attemptTimeout < 0");
+    }
+    long deadlineNanos = retry.timeoutUnit().toNanos(retry.deadline());
+    long attemptTimeoutNanos = retry.timeoutUnit().toNanos(retry.attemptTimeout());
+    return new RetryPolicy(group, timeToLiveNanos, maxAttempts, initialBackoffNanos,
+        maxBackoffNanos, statusCodes, retry.idempotency(), retry.priority(), hedgeDelayNanos,
+        deadlineNanos, attemptTimeoutNanos);
+  }
+
+  /** Returns {@code statusCodes} sorted, after checking that none of them is successful. */
+  static int[] checkStatusCodes(int[] statusCodes) {
+    for (int statusCode : statusCodes) {
+      if (statusCode < 300 || statusCode > 599) {
+        throw new IllegalArgumentException("Status code out of range: " + statusCode);
+      }
+    }
+    Arrays.sort(statusCodes);
+    return statusCodes;
+  }
+
+  boolean retriesStatus(int code) {
+    return statusCodes.length != 0 && Arrays.binarySearch(statusCodes, code) >= 0;
+  }
+
+  private static <A extends Annotation> A findAnnotation(Annotation[] annotations,
+      Class<A> type) {
+    for (Annotation annotation : annotations) {
+      if (type.isInstance(annotation)) return type.cast(annotation);
+    }
+    return null;
+  }
+}
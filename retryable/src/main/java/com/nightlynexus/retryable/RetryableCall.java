@@ -1,10 +1,35 @@
 package com.nightlynexus.retryable;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import okhttp3.Request;
+import retrofit2.Response;
 
 public interface RetryableCall<T> extends Cloneable {
   void enqueue(RetryableCallback<T> callback);
 
+  /**
+   * Like {@link #enqueue(RetryableCallback)}, but gives up on the call once {@code deadline} has
+   * passed, overriding {@link Retry#deadline()}. An attempt in flight at the deadline is
+   * canceled, and {@code callback} receives {@link RetryableCallback#onFailure} with an
+   * {@link java.io.InterruptedIOException}.
+   *
+   * @throws IllegalStateException if the {@link RetryableCalls} has no
+   *     {@linkplain RetryableCalls.Builder#scheduler scheduler}.
+   */
+  void enqueue(RetryableCallback<T> callback, long deadline, TimeUnit unit);
+
+  /**
+   * Sends the request on the calling thread, retrying it there until it succeeds, the policy
+   * gives up, or the call is canceled. Nothing is parked: the thread sleeps out each backoff
+   * instead, waking early if the call is canceled. A response whose status code is retried is
+   * returned if it is the last one received.
+   *
+   * @throws IOException the failure of the last attempt, or an
+   *     {@link java.io.InterruptedIOException} if the deadline passed.
+   */
+  Response<T> execute() throws IOException;
+
   boolean isExecuted();
 
   void cancel();
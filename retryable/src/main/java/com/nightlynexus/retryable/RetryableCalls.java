@@ -4,54 +4,584 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
-import okhttp3.Request;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
 import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Callback;
-import retrofit2.Response;
 import retrofit2.Retrofit;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public final class RetryableCalls {
   private final CallAdapter.Factory factory = new RetryingCallAdapterFactory(this);
-  private final Map<RealRetryableCall, Callback<Object>> failedCalls = new LinkedHashMap<>();
-  private final Object lock = new Object();
+  private final ParkedCalls parkedCalls;
+  private final ReplayQueue replayQueue;
+  private final ScheduledExecutorService scheduler;
+  private final BackoffScheduler backoffScheduler;
+  private final CircuitBreakers circuitBreakers;
+  private final InFlightCalls inFlightCalls;
+  private final RetryBudget retryBudget;
+  private final RetryJournal journal;
+  final RetryEventListener eventListener;
+  /** The recorder of each adapted service method, or null if endpoint metrics aren't recorded. */
+  private final List<EndpointRecorder> endpointRecorders;
+  final RetryPolicy defaultPolicy;
+
+  public RetryableCalls() {
+    this(new Builder());
+  }
+
+  RetryableCalls(Builder builder) {
+    this.parkedCalls = new ParkedCalls(builder.maxParkedCalls, builder.overflowPolicy);
+    AdaptiveLimit adaptiveLimit = builder.adaptiveMaxReplays == 0 ? null
+        : new AdaptiveLimit(builder.adaptiveInitialReplays, builder.adaptiveMaxReplays);
+    this.replayQueue = new ReplayQueue(builder.maxConcurrentReplays, adaptiveLimit,
+        builder.coalesceReplays);
+    this.scheduler = builder.scheduler;
+    this.backoffScheduler = builder.scheduler == null ? null
+        : new BackoffScheduler(builder.scheduler, parkedCalls, replayQueue);
+    this.circuitBreakers = builder.circuitBreakerThreshold == 0 ? null
+        : new CircuitBreakers(builder.circuitBreakerThreshold, builder.circuitBreakerOpenNanos);
+    this.inFlightCalls = builder.deduplicateInFlight ? new InFlightCalls() : null;
+    this.retryBudget = builder.retryBudgetWindowNanos == 0L ? null
+        : new RetryBudget(builder.maxRetryRatio, builder.minRetries,
+            builder.retryBudgetWindowNanos);
+    this.journal = builder.journal;
+    this.eventListener = builder.eventListener;
+    this.endpointRecorders = builder.recordEndpointMetrics
+        ? new CopyOnWriteArrayList<EndpointRecorder>()
+        : null;
+    this.defaultPolicy = RetryPolicy.defaults(builder);
+  }
 
   public CallAdapter.Factory getFactory() {
     return factory;
   }
 
   public void retryAllCalls() {
-    Map<Call<Object>, Callback<Object>> calls;
-    synchronized (lock) {
-      calls = new LinkedHashMap<>(failedCalls.size());
-      for (Map.Entry<RealRetryableCall, Callback<Object>> entry : failedCalls.entrySet()) {
-        calls.put(entry.getKey().cloned(), entry.getValue());
+    replay(parkedCalls.removeAll());
+  }
+
+  /** Retries the parked calls to {@code host}, leaving the others parked. */
+  public void retryCalls(String host) {
+    if (host == null) throw new NullPointerException("host == null");
+    replay(parkedCalls.removeAllForHost(host));
+  }
+
+  /** Retries the parked calls whose service method is in {@code group}. */
+  public void retryGroup(String group) {
+    if (group == null) throw new NullPointerException("group == null");
+    replay(parkedCalls.removeAllInGroup(group));
+  }
+
+  /**
+   * Retries the parked calls that {@code filter} matches. This visits every parked call; prefer
+   * {@link #retryCalls(String)} or {@link #retryGroup(String)} where they fit.
+   */
+  public void retryCalls(Filter filter) {
+    if (filter == null) throw new NullPointerException("filter == null");
+    replay(parkedCalls.removeAll(filter));
+  }
+
+  private void replay(List<ParkedCall> calls) {
+    if (backoffScheduler != null) {
+      for (int i = 0, size = calls.size(); i < size; i++) {
+        backoffScheduler.unschedule(calls.get(i));
       }
-      failedCalls.clear();
-    }
-    for (Map.Entry<Call<Object>, Callback<Object>> entry : calls.entrySet()) {
-      entry.getKey().enqueue(entry.getValue());
     }
+    replayQueue.replay(calls);
   }
 
   public void clearCalls() {
-    synchronized (lock) {
-      failedCalls.clear();
+    if (journal == null && eventListener == RetryEventListener.NONE) {
+      parkedCalls.clear();
+      replayQueue.clear();
+    } else {
+      cleared(parkedCalls.removeAll());
+      cleared(replayQueue.clear());
+    }
+    if (backoffScheduler != null) {
+      backoffScheduler.clear();
     }
   }
 
-  void addCall(RealRetryableCall call, Callback<Object> callback) {
-    synchronized (lock) {
-      failedCalls.put(call, callback);
+  private void cleared(List<ParkedCall> calls) {
+    for (int i = 0, size = calls.size(); i < size; i++) {
+      ParkedCall parked = calls.get(i);
+      cleared(parked.call);
+      if (parked.callback instanceof SharedCallback) {
+        // A coalesced replay that was waiting for a slot. Its followers are dropped with it.
+        List<RealRetryableCall> followers = ((SharedCallback) parked.callback).followers();
+        for (int j = 0, followerCount = followers.size(); j < followerCount; j++) {
+          cleared(followers.get(j));
+        }
+      }
+    }
+  }
+
+  private void cleared(RealRetryableCall call) {
+    if (journal != null && call.journalId != 0L) {
+      journal.done(call.journalId);
+    }
+    eventListener.callCleared(call);
+  }
+
+  /**
+   * Returns true if {@code call}'s host has an open circuit breaker, in which case
+   * {@code callback} has already been failed with a {@link CircuitBreakerOpenException}.
+   */
+  boolean shortCircuit(RealRetryableCall call, Callback<Object> callback) {
+    if (!isCircuitOpen(call)) return false;
+    callback.onFailure(call.delegate, new CircuitBreakerOpenException(call.host()));
+    return true;
+  }
+
+  /** Returns true if {@code call}'s host has an open circuit breaker. */
+  boolean isCircuitOpen(RealRetryableCall call) {
+    return circuitBreakers != null && !circuitBreakers.allowRequest(call.host());
+  }
+
+  /**
+   * Returns the callback to send {@code call}'s first attempt with, or null if it joined an
+   * identical request already in flight.
+   */
+  Callback<Object> joinInFlight(RealRetryableCall call, Callback<Object> callback) {
+    if (inFlightCalls == null) return callback;
+    return inFlightCalls.join(call, callback);
+  }
+
+  void attemptSucceeded(RealRetryableCall call) {
+    if (circuitBreakers == null) return;
+    String host = call.host();
+    if (circuitBreakers.recordSuccess(host)) {
+      // The host is back. Send everything that was parked while its breaker was open.
+      replay(parkedCalls.removeAllForHost(host));
+    }
+  }
+
+  void attemptFailed(RealRetryableCall call) {
+    if (circuitBreakers == null) return;
+    circuitBreakers.recordFailure(call.host());
+  }
+
+  /**
+   * Returns true if {@code call} may be parked for another attempt: it has attempts left, it has
+   * not expired, and the retry budget has a retry for it. That retry is taken now rather than when
+   * it is sent, so that a burst of failures cannot park more calls than the budget allows. A call
+   * keeps its retry until it is sent. A call that was never sent needs no retry: its next attempt
+   * is its first.
+   */
+  boolean reserveRetry(RealRetryableCall call) {
+    if (call.attempts >= call.policy.maxAttempts || call.isExpired()) return false;
+    if (retryBudget == null || call.retryReserved || call.attempts == 0) return true;
+    return call.retryReserved = retryBudget.tryAcquire();
+  }
+
+  /**
+   * Returns true if a hedged copy of an attempt may be sent now, in which case it is counted
+   * against the retry budget.
+   */
+  boolean tryHedge() {
+    return retryBudget == null || retryBudget.tryAcquire();
+  }
+
+  boolean hasScheduler() {
+    return scheduler != null;
+  }
+
+  ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+    return scheduler.schedule(task, delayNanos, NANOSECONDS);
+  }
+
+  void firstAttemptSent() {
+    if (retryBudget != null) retryBudget.recordRequest();
+  }
+
+  /** Spends the retry that {@code call} reserved when it was parked. */
+  void retrySent(RealRetryableCall call) {
+    call.retryReserved = false;
+  }
+
+  /**
+   * Parks {@code call} after an attempt failed with {@code failure}. Returns false if the parked
+   * calls are full and {@code call} was rejected or evicted right away, in which case it is not
+   * parked.
+   */
+  boolean addCall(RealRetryableCall call, Callback<Object> callback, IOException failure) {
+    expireParkedCalls();
+    if (journal != null && call.journalId == 0L) {
+      call.journalId = journal.parked(call.request());
+    }
+    long retryAtNanos =
+        backoffScheduler == null ? 0L : backoffScheduler.retryAtNanos(call, failure);
+    call.parkedAtNanos = System.nanoTime();
+    if (call.firstParkedAtMillis == 0L) {
+      call.firstParkedAtNanos = call.parkedAtNanos;
+      call.firstParkedAtMillis = System.currentTimeMillis();
+    }
+    ParkedCall parked = parkedCalls.add(call, callback, failure, retryAtNanos);
+    if (parked == null) return false;
+    if (backoffScheduler != null) {
+      backoffScheduler.schedule(parked);
+    }
+    if (!evictOverflow(call)) return false;
+    eventListener.callParked(call, failure);
+    return true;
+  }
+
+  /** Gives up on parked calls that have expired, so they neither take up room nor get retried. */
+  private void expireParkedCalls() {
+    long now = System.nanoTime();
+    ParkedCall expired;
+    while ((expired = parkedCalls.pollExpired(now)) != null) {
+      if (backoffScheduler != null) {
+        backoffScheduler.unschedule(expired);
+      }
+      expired.expire();
+    }
+  }
+
+  /** Evicts calls until the parked calls fit. Returns false if {@code parking} was evicted. */
+  private boolean evictOverflow(RealRetryableCall parking) {
+    boolean parked = true;
+    ParkedCall evicted;
+    while ((evicted = parkedCalls.evictOverflow()) != null) {
+      if (backoffScheduler != null) {
+        backoffScheduler.unschedule(evicted);
+      }
+      if (evicted.call == parking) {
+        // The caller fails it with the failure it was being parked for.
+        parked = false;
+      } else {
+        eventListener.callEvicted(evicted.call);
+        evicted.call.giveUp(
+            new IOException("Evicted to make room for other parked calls", evicted.failure));
+      }
+    }
+    return parked;
+  }
+
+  /**
+   * Returns a snapshot of the metrics of each service method that has been adapted, or an empty
+   * list unless {@linkplain Builder#recordEndpointMetrics(boolean) they are recorded}.
+   */
+  public List<EndpointMetrics> endpointMetrics() {
+    if (endpointRecorders == null) return Collections.emptyList();
+    List<EndpointMetrics> metrics = new ArrayList<>(endpointRecorders.size());
+    for (EndpointRecorder recorder : endpointRecorders) {
+      metrics.add(recorder.snapshot());
+    }
+    return metrics;
+  }
+
+  /**
+   * Returns a snapshot of the calls that are parked. It is copied without locking the parked calls,
+   * so calls parked meanwhile are left out and calls unparked meanwhile may still be included.
+   */
+  public ParkedCallsSnapshot parkedCallsSnapshot() {
+    return parkedCalls.snapshot(System.nanoTime());
+  }
+
+  /**
+   * Returns a new recorder for the service method with {@code annotations}, or null. Retrofit
+   * adapts each service method once per instance, so each gets its own recorder, even if another
+   * has the same HTTP method and URL.
+   */
+  EndpointRecorder endpointRecorder(HttpUrl baseUrl, Annotation[] annotations) {
+    if (endpointRecorders == null) return null;
+    EndpointRecorder recorder =
+        new EndpointRecorder(EndpointRecorder.endpoint(baseUrl, annotations));
+    endpointRecorders.add(recorder);
+    return recorder;
+  }
+
+  /**
+   * Returns true if {@code call} was waiting for a replay slot, in which case the caller now owns
+   * it.
+   */
+  boolean removeWaitingCall(RealRetryableCall call) {
+    return replayQueue.remove(call);
+  }
+
+  /** Returns true if {@code call} was parked, in which case the caller now owns it. */
+  boolean removeCall(RealRetryableCall call) {
+    ParkedCall parked = parkedCalls.remove(call);
+    if (parked != null && backoffScheduler != null) {
+      backoffScheduler.unschedule(parked);
+    }
+    if (journal != null && call.journalId != 0L) {
+      journal.done(call.journalId);
     }
+    return parked != null;
+  }
+
+  /** What to do when a call needs to be parked but {@code maxParkedCalls} are already parked. */
+  public enum OverflowPolicy {
+    /**
+     * Park the new call, and give up on the call that was parked longest ago. Its callback
+     * receives {@link RetryableCallback#onFailure} with an {@link IOException} caused by the
+     * failure it was parked for.
+     */
+    EVICT_OLDEST,
+    /**
+     * Park the new call, and give up on the parked call with the lowest
+     * {@linkplain Retry#priority() priority}, oldest first among equals. If the new call would be
+     * that call, it is failed instead of being parked.
+     */
+    EVICT_LOWEST_PRIORITY,
+    /**
+     * Don't park the new call. Its callback receives {@link RetryableCallback#onFailure} with the
+     * failure of its last attempt.
+     */
+    REJECT_NEW
+  }
+
+  /** Selects parked calls to retry. */
+  public interface Filter {
+    boolean matches(RetryableCall<?> call);
   }
 
-  void removeCall(RealRetryableCall call) {
-    synchronized (lock) {
-      failedCalls.remove(call);
+  public static final class Builder {
+    int maxConcurrentReplays = Integer.MAX_VALUE;
+    int adaptiveInitialReplays;
+    int adaptiveMaxReplays;
+    int maxParkedCalls = Integer.MAX_VALUE;
+    OverflowPolicy overflowPolicy = OverflowPolicy.REJECT_NEW;
+    boolean coalesceReplays;
+    boolean deduplicateInFlight;
+    RetryJournal journal;
+    ScheduledExecutorService scheduler;
+    long initialBackoffNanos = SECONDS.toNanos(1);
+    long maxBackoffNanos = MINUTES.toNanos(5);
+    int maxAttempts = Integer.MAX_VALUE;
+    int circuitBreakerThreshold;
+    long circuitBreakerOpenNanos;
+    long parkedTimeToLiveNanos;
+    int[] retryStatusCodes = new int[0];
+    double maxRetryRatio;
+    int minRetries;
+    long retryBudgetWindowNanos;
+    RetryEventListener eventListener = RetryEventListener.NONE;
+    boolean recordEndpointMetrics;
+
+    /**
+     * Limits how many calls {@link #retryAllCalls()} replays at once. The remaining calls wait and
+     * are sent, oldest first, as replayed calls complete. By default, every parked call is replayed
+     * immediately.
+     */
+    public Builder maxConcurrentReplays(int maxConcurrentReplays) {
+      if (maxConcurrentReplays < 1) {
+        throw new IllegalArgumentException("maxConcurrentReplays < 1: " + maxConcurrentReplays);
+      }
+      this.maxConcurrentReplays = maxConcurrentReplays;
+      this.adaptiveInitialReplays = 0;
+      this.adaptiveMaxReplays = 0;
+      return this;
+    }
+
+    /**
+     * Like {@link #maxConcurrentReplays(int)}, but adjusts the limit to how the backend copes. It
+     * starts at {@code initialLimit} and grows by about one for every limit's worth of replays
+     * that complete in good time, up to {@code maxLimit}. It halves when a replay fails, gets a
+     * 429 or 5xx response, or takes more than twice the smoothed round trip: a moving average of
+     * the replays' round trips, in which each replay weighs an eighth. After an outage, parked
+     * calls are then replayed about as fast as the backend can sustain.
+     */
+    public Builder adaptiveConcurrentReplays(int initialLimit, int maxLimit) {
+      if (initialLimit < 1) throw new IllegalArgumentException("initialLimit < 1: " + initialLimit);
+      if (maxLimit < initialLimit) throw new IllegalArgumentException("maxLimit < initialLimit");
+      this.adaptiveInitialReplays = initialLimit;
+      this.adaptiveMaxReplays = maxLimit;
+      this.maxConcurrentReplays = Integer.MAX_VALUE;
+      return this;
+    }
+
+    /**
+     * Limits how many calls can be parked at once, so that a long outage cannot retain an
+     * unbounded number of calls, callbacks, and request bodies. Once the limit is reached,
+     * {@code overflowPolicy} decides which call is failed. Calls waiting for a
+     * {@linkplain #maxConcurrentReplays(int) replay slot} are not counted. Unbounded by default.
+     */
+    public Builder maxParkedCalls(int maxParkedCalls, OverflowPolicy overflowPolicy) {
+      if (maxParkedCalls < 1) {
+        throw new IllegalArgumentException("maxParkedCalls < 1: " + maxParkedCalls);
+      }
+      if (overflowPolicy == null) throw new NullPointerException("overflowPolicy == null");
+      this.maxParkedCalls = maxParkedCalls;
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /**
+     * When enabled, parked calls with the same {@code GET} or {@code HEAD} request (the same
+     * method, URL, and headers) are retried with a single network call, and its response is
+     * delivered to each of them. A converted body is the same instance for every callback; a
+     * {@link okhttp3.ResponseBody} body or error body is buffered and copied for each.
+     * Disabled by default.
+     */
+    public Builder coalesceReplays(boolean coalesceReplays) {
+      this.coalesceReplays = coalesceReplays;
+      return this;
+    }
+
+    /**
+     * When enabled, a call whose {@code GET} or {@code HEAD} request equals one that is already in
+     * flight is not sent. It waits for that request instead, and receives the same response. As
+     * with {@linkplain #coalesceReplays(boolean) coalesced replays}, response bodies are shared
+     * and {@link okhttp3.ResponseBody} bodies are copied. Disabled by default.
+     */
+    public Builder deduplicateInFlight(boolean deduplicateInFlight) {
+      this.deduplicateInFlight = deduplicateInFlight;
+      return this;
+    }
+
+    /** Reports the lifecycle of every call and each of its attempts to {@code eventListener}. */
+    public Builder eventListener(RetryEventListener eventListener) {
+      if (eventListener == null) throw new NullPointerException("eventListener == null");
+      this.eventListener = eventListener;
+      return this;
+    }
+
+    /**
+     * Records latency histograms and counters for the calls of each service method, for
+     * {@link RetryableCalls#endpointMetrics()}. Disabled by default.
+     */
+    public Builder recordEndpointMetrics(boolean recordEndpointMetrics) {
+      this.recordEndpointMetrics = recordEndpointMetrics;
+      return this;
+    }
+
+    /**
+     * Writes every parked call's request to {@code journal} until the call is delivered, fails
+     * for good, or is canceled, so that pending requests can be recovered after a restart.
+     */
+    public Builder journal(RetryJournal journal) {
+      if (journal == null) throw new NullPointerException("journal == null");
+      this.journal = journal;
+      return this;
+    }
+
+    /**
+     * Retries parked calls automatically on {@code scheduler}, each after its own exponential
+     * backoff. Calls can still be retried early with {@link #retryAllCalls()}.
+     */
+    public Builder scheduler(ScheduledExecutorService scheduler) {
+      if (scheduler == null) throw new NullPointerException("scheduler == null");
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Sets the delay before a call is automatically retried. The delay starts at
+     * {@code initialBackoff}, doubles after every failed attempt up to {@code maxBackoff}, and is
+     * randomized by up to half. Defaults to 1 second, growing to 5 minutes. Used with a
+     * {@linkplain #scheduler(ScheduledExecutorService) scheduler}, and between the attempts of
+     * {@link RetryableCall#execute()}.
+     */
+    public Builder backoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+      if (initialBackoff <= 0) throw new IllegalArgumentException("initialBackoff <= 0");
+      if (maxBackoff < initialBackoff) {
+        throw new IllegalArgumentException("maxBackoff < initialBackoff");
+      }
+      this.initialBackoffNanos = unit.toNanos(initialBackoff);
+      this.maxBackoffNanos = unit.toNanos(maxBackoff);
+      return this;
+    }
+
+    /**
+     * Limits how many times a call is sent, including its first attempt. A call that fails on its
+     * last attempt is delivered to {@link RetryableCallback#onFailure} instead of being parked.
+     * By default, calls are retried until they complete or are canceled.
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1: " + maxAttempts);
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Parks calls whose responses have one of {@code statusCodes}, typically 429 and 503, like
+     * calls that failed with an {@link IOException}. The callback receives
+     * {@link RetryableCallback#onFailureButCanRetry} with a {@link RetryableStatusException}, and a
+     * {@linkplain #scheduler scheduled} retry honors the response's {@code Retry-After} header.
+     * Once a call is out of attempts, its last response is delivered to
+     * {@link RetryableCallback#onResponse}. Service methods can override this with
+     * {@link Retry#statusCodes()}. By default, every response is delivered.
+     */
+    public Builder retryOnStatus(int... statusCodes) {
+      if (statusCodes == null) throw new NullPointerException("statusCodes == null");
+      this.retryStatusCodes = RetryPolicy.checkStatusCodes(statusCodes.clone());
+      return this;
+    }
+
+    /**
+     * Limits retries to {@code maxRetryRatio} times the number of calls enqueued, plus
+     * {@code minRetries}, over any sliding {@code window}. While the budget is spent, a failed call
+     * is not parked. It is delivered to {@link RetryableCallback#onFailure} as if it were out of
+     * attempts, so that retries cannot multiply the load on a backend that is already failing. A
+     * parked call takes its retry from the budget when it is parked, not when it is sent. A ratio
+     * of 0.2 lets retries add at most 20% to the traffic. Unlimited by default.
+     */
+    public Builder retryBudget(double maxRetryRatio, int minRetries, long window, TimeUnit unit) {
+      if (!(maxRetryRatio >= 0)) {
+        throw new IllegalArgumentException("maxRetryRatio < 0: " + maxRetryRatio);
+      }
+      if (minRetries < 0) throw new IllegalArgumentException("minRetries < 0: " + minRetries);
+      if (window <= 0) throw new IllegalArgumentException("window <= 0");
+      this.maxRetryRatio = maxRetryRatio;
+      this.minRetries = minRetries;
+      this.retryBudgetWindowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /**
+     * Opens a host's circuit breaker after {@code failureThreshold} consecutive attempts to it fail
+     * with an {@link java.io.IOException}. While a breaker is open, calls to its host are parked
+     * immediately, without being sent, and delivered to
+     * {@link RetryableCallback#onFailureButCanRetry} with a {@link CircuitBreakerOpenException}.
+     * After {@code openDuration}, the next call to the host is sent as a probe. If the host
+     * answers, the breaker closes and every call parked for the host is retried. Otherwise, the
+     * breaker stays open for another {@code openDuration}. Parked calls also probe the host as
+     * their backoff elapses, so circuit breakers require a {@linkplain #scheduler scheduler}.
+     */
+    public Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+      if (failureThreshold < 1) {
+        throw new IllegalArgumentException("failureThreshold < 1: " + failureThreshold);
+      }
+      if (openDuration <= 0) throw new IllegalArgumentException("openDuration <= 0");
+      this.circuitBreakerThreshold = failureThreshold;
+      this.circuitBreakerOpenNanos = unit.toNanos(openDuration);
+      return this;
+    }
+
+    /**
+     * Gives up on calls once they are older than {@code timeToLive}, measured from when each call
+     * is enqueued. An expired call is delivered to {@link RetryableCallback#onFailure} when it
+     * would next be retried, or sooner if another call is parked after it expires. Service methods
+     * can override this with {@link TimeToLive}. By default, calls never expire.
+     */
+    public Builder parkedTimeToLive(long timeToLive, TimeUnit unit) {
+      if (timeToLive <= 0) throw new IllegalArgumentException("timeToLive <= 0");
+      this.parkedTimeToLiveNanos = unit.toNanos(timeToLive);
+      return this;
+    }
+
+    public RetryableCalls build() {
+      if (circuitBreakerThreshold != 0 && scheduler == null) {
+        throw new IllegalStateException("Circuit breakers require a scheduler. "
+            + "Set one with RetryableCalls.Builder.scheduler().");
+      }
+      return new RetryableCalls(this);
     }
   }
 
@@ -70,6 +600,15 @@ public final class RetryableCalls {
       }
       final Type responseType = getParameterUpperBound(0, (ParameterizedType) type);
       final Executor executor = retrofit.callbackExecutor();
+      final RetryPolicy policy = RetryPolicy.forMethod(annotations, retryableCalls.defaultPolicy);
+      if ((policy.hedgeDelayNanos != 0L || policy.deadlineNanos != 0L
+          || policy.attemptTimeoutNanos != 0L) && retryableCalls.scheduler == null) {
+        throw new IllegalArgumentException("Hedging, deadlines, and attempt timeouts require a "
+            + "scheduler. Set one with RetryableCalls.Builder.scheduler().");
+      }
+
+      final EndpointRecorder recorder =
+          retryableCalls.endpointRecorder(retrofit.baseUrl(), annotations);
 
       return new CallAdapter<Object, RetryableCall<Object>>() {
         @Override public Type responseType() {
@@ -77,114 +616,9 @@ public final class RetryableCalls {
         }
 
         @Override public RetryableCall<Object> adapt(Call<Object> call) {
-          return new RealRetryableCall(call, executor, retryableCalls);
+          return new RealRetryableCall(call, executor, retryableCalls, policy, recorder);
         }
       };
     }
   }
-
-  private static final class RealRetryableCall implements RetryableCall<Object> {
-    final Call<Object> delegate;
-    final Executor callbackExecutor;
-    final RetryableCalls retryableCalls;
-    private Call<Object> cloned;
-
-    RealRetryableCall(Call<Object> delegate, Executor callbackExecutor,
-        RetryableCalls retryableCalls) {
-      this.delegate = delegate;
-      this.callbackExecutor = callbackExecutor;
-      this.retryableCalls = retryableCalls;
-    }
-
-    Call<Object> cloned() {
-      cloned = delegate.clone();
-      return cloned;
-    }
-
-    @Override public void enqueue(final RetryableCallback<Object> callback) {
-      delegate.enqueue(new Callback<Object>() {
-        @Override public void onResponse(Call<Object> call, final Response<Object> response) {
-          retryableCalls.removeCall(RealRetryableCall.this);
-          if (callbackExecutor == null) {
-            callback.onResponse(RealRetryableCall.this, response);
-          } else {
-            callbackExecutor.execute(new Runnable() {
-              @Override public void run() {
-                if (delegate.isCanceled()) {
-                  // Emulate OkHttp's behavior of delivering an IOException on cancellation.
-                  callback.onFailure(RealRetryableCall.this, new IOException("Canceled"));
-                } else {
-                  callback.onResponse(RealRetryableCall.this, response);
-                }
-              }
-            });
-          }
-        }
-
-        @Override public void onFailure(Call<Object> call, final Throwable t) {
-          if (delegate.isCanceled()) {
-            if (callbackExecutor == null) {
-              callback.onFailure(RealRetryableCall.this, t);
-            } else {
-              callbackExecutor.execute(new Runnable() {
-                @Override public void run() {
-                  callback.onFailure(RealRetryableCall.this, t);
-                }
-              });
-            }
-          } else {
-            if (t instanceof IOException) {
-              retryableCalls.addCall(RealRetryableCall.this, this);
-              if (callbackExecutor == null) {
-                callback.onFailureButCanRetry(RealRetryableCall.this, (IOException) t);
-              } else {
-                callbackExecutor.execute(new Runnable() {
-                  @Override public void run() {
-                    if (delegate.isCanceled()) {
-                      callback.onFailure(RealRetryableCall.this, t);
-                    } else {
-                      callback.onFailureButCanRetry(RealRetryableCall.this, (IOException) t);
-                    }
-                  }
-                });
-              }
-            } else {
-              retryableCalls.removeCall(RealRetryableCall.this);
-              if (callbackExecutor == null) {
-                callback.onFailure(RealRetryableCall.this, t);
-              } else {
-                callbackExecutor.execute(new Runnable() {
-                  @Override public void run() {
-                    callback.onFailure(RealRetryableCall.this, t);
-                  }
-                });
-              }
-            }
-          }
-        }
-      });
-    }
-
-    @Override public boolean isExecuted() {
-      return delegate.isExecuted();
-    }
-
-    @Override public void cancel() {
-      retryableCalls.removeCall(RealRetryableCall.this);
-      delegate.cancel();
-      if (cloned != null) cloned.cancel();
-    }
-
-    @Override public boolean isCanceled() {
-      return delegate.isCanceled();
-    }
-
-    @Override public RealRetryableCall clone() {
-      return new RealRetryableCall(delegate.clone(), callbackExecutor, retryableCalls);
-    }
-
-    @Override public Request request() {
-      return delegate.request();
-    }
-  }
 }
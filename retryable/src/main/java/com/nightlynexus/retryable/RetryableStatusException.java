@@ -0,0 +1,62 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.Date;
+import okhttp3.Headers;
+import retrofit2.Response;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Delivered to {@link RetryableCallback#onFailureButCanRetry} when a call is parked because its
+ * response has one of the method's {@linkplain Retry#statusCodes() retryable status codes}.
+ *
+ * <p>If the response has a {@code Retry-After} header, a
+ * {@linkplain RetryableCalls.Builder#scheduler scheduled} retry waits exactly as long as it asks
+ * instead of backing off.
+ */
+public final class RetryableStatusException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int code;
+  private final long retryAfterMillis;
+  private final transient Response<?> response;
+
+  RetryableStatusException(Response<?> response) {
+    super("HTTP " + response.code() + " " + response.message());
+    this.code = response.code();
+    this.retryAfterMillis = parseRetryAfterMillis(response.headers(), System.currentTimeMillis());
+    this.response = response;
+  }
+
+  /**
+   * Returns how long the server asked to wait before retrying, or -1 if it didn't. Both the
+   * delay-seconds and the HTTP-date forms of {@code Retry-After} are understood.
+   */
+  public long retryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  public int code() {
+    return code;
+  }
+
+  /** The response that parked the call. Null if this exception was deserialized. */
+  public Response<?> response() {
+    return response;
+  }
+
+  static long parseRetryAfterMillis(Headers headers, long nowMillis) {
+    String value = headers.get("Retry-After");
+    if (value == null) return -1L;
+    try {
+      long seconds = Long.parseLong(value.trim());
+      return seconds < 0 ? -1L : SECONDS.toMillis(seconds);
+    } catch (NumberFormatException ignored) {
+      // Try the HTTP-date form.
+    }
+    Date date = headers.getDate("Retry-After");
+    if (date == null) return -1L;
+    return Math.max(0L, date.getTime() - nowMillis);
+  }
+}
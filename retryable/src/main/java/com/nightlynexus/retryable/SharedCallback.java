@@ -0,0 +1,167 @@
+package com.nightlynexus.retryable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Delivers the result of one network call to several calls that asked for the same request.
+ *
+ * <p>Followers can join until the result arrives. Once it has, {@link #addFollower} returns false
+ * and the caller must send its own request.
+ *
+ * <p>Converted bodies are shared as-is. A {@link ResponseBody}, whether the success body or the
+ * error body, can only be read once, so it is buffered and every recipient gets its own copy.
+ *
+ * <p>If an in-flight request fails because its leader canceled it, the host was never the problem.
+ * Its live followers then send it again, the first of them leading the others, instead of failing.
+ */
+final class SharedCallback implements Callback<Object> {
+  /** The call that sent the request, or null when coalescing replays. */
+  private final RealRetryableCall leader;
+  private Callback<Object> leaderCallback; // Written while holding this.
+  private final InFlightCalls inFlightCalls;
+  private final RequestKey key;
+  private final List<RealRetryableCall> followers = new ArrayList<>();
+  private final List<Callback<Object>> followerCallbacks = new ArrayList<>();
+  private boolean completed; // Guarded by this.
+
+  SharedCallback(Callback<Object> leaderCallback) {
+    this(null, leaderCallback, null, null);
+  }
+
+  /** Creates an in-flight call that will remove itself from {@code inFlightCalls} on completion. */
+  SharedCallback(RealRetryableCall leader, Callback<Object> leaderCallback,
+      InFlightCalls inFlightCalls, RequestKey key) {
+    this.leader = leader;
+    this.leaderCallback = leaderCallback;
+    this.inFlightCalls = inFlightCalls;
+    this.key = key;
+  }
+
+  synchronized boolean addFollower(RealRetryableCall follower, Callback<Object> followerCallback) {
+    if (completed) return false;
+    followers.add(follower);
+    followerCallbacks.add(followerCallback);
+    follower.following = this;
+    return true;
+  }
+
+  /**
+   * Returns true if {@code follower} stopped following this call before its result arrived, in
+   * which case the caller owns it.
+   */
+  synchronized boolean removeFollower(RealRetryableCall follower) {
+    if (completed) return false;
+    int index = followers.indexOf(follower);
+    if (index == -1) return false;
+    followers.remove(index);
+    followerCallbacks.remove(index);
+    follower.following = null;
+    return true;
+  }
+
+  /**
+   * Makes the first follower of a coalesced replay that has not been sent its leader, dropping the
+   * old leader, and returns it. Returns null if there are no followers.
+   */
+  synchronized RealRetryableCall promoteFollower() {
+    if (followers.isEmpty()) return null;
+    RealRetryableCall follower = followers.remove(0);
+    leaderCallback = followerCallbacks.remove(0);
+    follower.following = null;
+    return follower;
+  }
+
+  /** Returns the calls that are following this one. */
+  synchronized List<RealRetryableCall> followers() {
+    return new ArrayList<>(followers);
+  }
+
+  private void complete() {
+    if (inFlightCalls != null) {
+      inFlightCalls.remove(key, this);
+    }
+    synchronized (this) {
+      completed = true;
+    }
+  }
+
+  @Override public void onResponse(Call<Object> call, Response<Object> response) {
+    complete();
+    Object body = response.body();
+    ResponseBody errorBody = response.errorBody();
+    if (!(body instanceof ResponseBody) && errorBody == null) {
+      leaderCallback.onResponse(call, response);
+      for (int i = 0, size = followers.size(); i < size; i++) {
+        deliverResponse(i, call, response);
+      }
+      return;
+    }
+
+    ResponseBody responseBody = body instanceof ResponseBody ? (ResponseBody) body : errorBody;
+    MediaType contentType = responseBody.contentType();
+    byte[] bytes;
+    try {
+      bytes = responseBody.bytes();
+    } catch (IOException e) {
+      deliverFailure(call, e);
+      return;
+    }
+    leaderCallback.onResponse(call, copy(response, contentType, bytes));
+    for (int i = 0, size = followers.size(); i < size; i++) {
+      deliverResponse(i, call, copy(response, contentType, bytes));
+    }
+  }
+
+  @Override public void onFailure(Call<Object> call, Throwable t) {
+    complete();
+    if (leader != null && leader.isAbandoned()) {
+      handOver(call, t);
+    } else {
+      deliverFailure(call, t);
+    }
+  }
+
+  private void handOver(Call<Object> call, Throwable t) {
+    leaderCallback.onFailure(call, t);
+    for (int i = 0, size = followers.size(); i < size; i++) {
+      RealRetryableCall follower = followers.get(i);
+      if (follower.isCanceled()) {
+        followerCallbacks.get(i).onFailure(call, t);
+      } else {
+        follower.following = null;
+        follower.sendFirstAttempt();
+      }
+    }
+  }
+
+  private void deliverFailure(Call<Object> call, Throwable t) {
+    leaderCallback.onFailure(call, t);
+    for (int i = 0, size = followers.size(); i < size; i++) {
+      followerCallbacks.get(i).onFailure(call, t);
+    }
+  }
+
+  private void deliverResponse(int i, Call<Object> call, Response<Object> response) {
+    if (followers.get(i).isCanceled()) {
+      // The network call was not this follower's to cancel, so emulate OkHttp's cancellation.
+      followerCallbacks.get(i).onFailure(call, new IOException("Canceled"));
+    } else {
+      followerCallbacks.get(i).onResponse(call, response);
+    }
+  }
+
+  private static Response<Object> copy(Response<Object> response, MediaType contentType,
+      byte[] bytes) {
+    ResponseBody body = ResponseBody.create(contentType, bytes);
+    return response.isSuccessful()
+        ? Response.<Object>success(body, response.raw())
+        : Response.<Object>error(body, response.raw());
+  }
+}
@@ -0,0 +1,29 @@
+package com.nightlynexus.retryable;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Gives up on the calls of a service method once they are older than the given duration,
+ * measured from when each call is enqueued. A parked call that expires is delivered to
+ * {@link RetryableCallback#onFailure} instead of being retried. Overrides
+ * {@link RetryableCalls.Builder#parkedTimeToLive(long, TimeUnit)}.
+ * <pre><code>
+ * &#64;TimeToLive(value = 30, unit = TimeUnit.SECONDS)
+ * &#64;GET("quotes/{symbol}")
+ * RetryableCall&lt;Quote&gt; quote(&#64;Path("symbol") String symbol);
+ * </code></pre>
+ */
+@Documented
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface TimeToLive {
+  long value();
+
+  TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,50 @@
+package com.nightlynexus.retryable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(JUnit4.class)
+public final class ConcurrentHistogramTest {
+  @Test public void bucketsCoverEveryValue() {
+    assertThat(ConcurrentHistogram.bucket(0L)).isEqualTo(0);
+    assertThat(ConcurrentHistogram.bucket(Long.MAX_VALUE))
+        .isEqualTo(ConcurrentHistogram.BUCKETS - 1);
+    for (int i = 0; i < ConcurrentHistogram.BUCKETS; i++) {
+      long lowest = ConcurrentHistogram.lowestValue(i);
+      long highest = ConcurrentHistogram.highestValue(i);
+      assertThat(ConcurrentHistogram.bucket(lowest)).isEqualTo(i);
+      assertThat(ConcurrentHistogram.bucket(highest)).isEqualTo(i);
+      if (i + 1 < ConcurrentHistogram.BUCKETS) {
+        assertThat(ConcurrentHistogram.lowestValue(i + 1)).isEqualTo(highest + 1);
+      }
+      // Within an eighth.
+      assertThat(highest - lowest).isAtMost(lowest / 8);
+    }
+  }
+
+  @Test public void quantiles() {
+    ConcurrentHistogram histogram = new ConcurrentHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    Histogram snapshot = histogram.snapshot();
+    assertThat(snapshot.count()).isEqualTo(1000L);
+    assertThat(snapshot.min()).isEqualTo(1000L);
+    assertThat(snapshot.max()).isEqualTo(1000000L);
+    assertThat((double) snapshot.valueAtQuantile(0.5d)).isWithin(500000d / 8).of(500000d);
+    assertThat((double) snapshot.valueAtQuantile(0.99d)).isWithin(990000d / 8).of(990000d);
+    assertThat(snapshot.valueAtQuantile(1d)).isEqualTo(1000000L);
+    assertThat(snapshot.mean()).isWithin(500500d / 8).of(500500d);
+  }
+
+  @Test public void empty() {
+    Histogram snapshot = new ConcurrentHistogram().snapshot();
+    assertThat(snapshot.count()).isEqualTo(0L);
+    assertThat(snapshot.min()).isEqualTo(0L);
+    assertThat(snapshot.max()).isEqualTo(0L);
+    assertThat(snapshot.valueAtQuantile(0.99d)).isEqualTo(0L);
+  }
+}
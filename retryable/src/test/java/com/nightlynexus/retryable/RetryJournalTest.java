@@ -0,0 +1,174 @@
+package com.nightlynexus.retryable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import retrofit2.Retrofit;
+import retrofit2.http.Body;
+import retrofit2.http.POST;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@RunWith(JUnit4.class)
+public final class RetryJournalTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private interface Service {
+    @POST("/messages") RetryableCall<String> send(@Body String message);
+  }
+
+  @Test public void parkedCallsAreRecoveredAfterRestart() throws Exception {
+    File directory = temporaryFolder.newFolder();
+    MockWebServer server = new MockWebServer();
+    RetryJournal journal = RetryJournal.open(directory, 10, MILLISECONDS);
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .journal(journal)
+        .build();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    RetryableCallsTest.CountingCallback callback = new RetryableCallsTest.CountingCallback(3);
+    service.send("Lost").enqueue(callback);
+    service.send("Delivered").enqueue(callback);
+    RetryableCall<String> canceled = service.send("Canceled");
+    canceled.enqueue(callback);
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    canceled.cancel();
+
+    retryableCalls.retryCalls(new RetryableCalls.Filter() {
+      @Override public boolean matches(RetryableCall<?> call) {
+        return bodyOf(call.request()).equals("Delivered");
+      }
+    });
+    assertThat(callback.responseLatch.await(1, SECONDS)).isFalse();
+    assertThat(callback.responseCount.get()).isEqualTo(1);
+    journal.close();
+
+    // Simulate a restart: the parked call is recovered with its body.
+    RetryJournal reopened = RetryJournal.open(directory, 10, MILLISECONDS);
+    List<Request> recovered = reopened.recoveredRequests();
+    assertThat(recovered).hasSize(1);
+    Request request = recovered.get(0);
+    assertThat(request.method()).isEqualTo("POST");
+    assertThat(request.url()).isEqualTo(server.url("/messages"));
+    assertThat(request.body().contentType().toString()).isEqualTo("text/plain; charset=utf-8");
+    assertThat(bodyOf(request)).isEqualTo("Lost");
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    final CountDownLatch responseLatch = new CountDownLatch(1);
+    reopened.replayRecovered(new OkHttpClient(), new Callback() {
+      @Override public void onResponse(Call call, Response response) {
+        response.close();
+        responseLatch.countDown();
+      }
+
+      @Override public void onFailure(Call call, IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    assertThat(responseLatch.await(10, SECONDS)).isTrue();
+    for (int i = 0; i < 4; i++) {
+      server.takeRequest();
+    }
+    RecordedRequest replayed = server.takeRequest();
+    assertThat(replayed.getBody().readUtf8()).isEqualTo("Lost");
+    assertThat(reopened.recoveredRequests()).isEmpty();
+    reopened.close();
+
+    RetryJournal reopenedAgain = RetryJournal.open(directory, 10, MILLISECONDS);
+    assertThat(reopenedAgain.recoveredRequests()).isEmpty();
+    reopenedAgain.close();
+  }
+
+  @Test public void tornRecordIsIgnored() throws Exception {
+    File directory = temporaryFolder.newFolder();
+    RetryJournal journal = RetryJournal.open(directory, 10, MILLISECONDS);
+    journal.parked(new Request.Builder().url("https://example.com/a").build());
+    journal.parked(new Request.Builder().url("https://example.com/b").build());
+    journal.close();
+
+    File file = new File(directory, RetryJournal.JOURNAL_FILE);
+    Buffer buffer = new Buffer();
+    Source source = Okio.source(file);
+    buffer.write(source, file.length() - 3);
+    source.close();
+    BufferedSink sink = Okio.buffer(Okio.sink(file));
+    sink.writeAll(buffer);
+    sink.close();
+
+    RetryJournal reopened = RetryJournal.open(directory, 10, MILLISECONDS);
+    List<Request> recovered = reopened.recoveredRequests();
+    assertThat(recovered).hasSize(1);
+    assertThat(recovered.get(0).url().toString()).isEqualTo("https://example.com/a");
+    reopened.close();
+  }
+
+  @Test public void failedCompactionKeepsAppendingToOldLog() throws Exception {
+    File directory = temporaryFolder.newFolder();
+    RetryJournal journal = RetryJournal.open(directory, 1, HOURS);
+    for (int i = 0; i < 1000; i++) {
+      journal.done(journal.parked(new Request.Builder().url("https://example.com/done").build()));
+    }
+    journal.parked(new Request.Builder().url("https://example.com/a").build());
+    // A directory in the way of the new log makes compaction fail.
+    File temp = new File(directory, RetryJournal.JOURNAL_FILE_TEMP);
+    assertThat(temp.mkdir()).isTrue();
+    try {
+      journal.sync();
+      throw new AssertionError();
+    } catch (IOException expected) {
+    }
+
+    journal.parked(new Request.Builder().url("https://example.com/b").build());
+    journal.close();
+    assertThat(temp.delete()).isTrue();
+
+    RetryJournal reopened = RetryJournal.open(directory, 1, HOURS);
+    List<Request> recovered = reopened.recoveredRequests();
+    assertThat(recovered).hasSize(2);
+    assertThat(recovered.get(0).url().toString()).isEqualTo("https://example.com/a");
+    assertThat(recovered.get(1).url().toString()).isEqualTo("https://example.com/b");
+    reopened.close();
+  }
+
+  static String bodyOf(Request request) {
+    Buffer buffer = new Buffer();
+    try {
+      request.body().writeTo(buffer);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    return buffer.readUtf8();
+  }
+}
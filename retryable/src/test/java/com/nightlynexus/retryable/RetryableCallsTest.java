@@ -1,15 +1,29 @@
 package com.nightlynexus.retryable;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
 import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import okhttp3.mockwebserver.SocketPolicy;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -20,6 +34,8 @@ import retrofit2.Retrofit;
 import retrofit2.http.GET;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
 
@@ -27,6 +43,37 @@ import static org.junit.Assert.fail;
 public final class RetryableCallsTest {
   private interface Service {
     @GET("/") RetryableCall<String> getString();
+
+    @GET("/other") RetryableCall<String> getOther();
+  }
+
+  private interface AnnotatedService {
+    @Retry(maxAttempts = 2, statusCodes = 503)
+    @GET("/") RetryableCall<String> getWithStatusRetry();
+
+    @Retry(priority = 1)
+    @GET("/") RetryableCall<String> getImportant();
+
+    @Retry(priority = 2)
+    @GET("/") RetryableCall<String> getMoreImportant();
+
+    @GET("/") RetryableCall<String> getUnimportant();
+
+    @Retry(hedgeDelay = 100)
+    @GET("/") RetryableCall<String> getHedged();
+
+    @Retry(attemptTimeout = 100)
+    @GET("/") RetryableCall<String> getWithAttemptTimeout();
+
+    @Retry(hedgeDelay = 100, attemptTimeout = 500)
+    @GET("/") RetryableCall<String> getHedgedWithAttemptTimeout();
+  }
+
+  private interface ShortLivedService {
+    @TimeToLive(value = 100, unit = TimeUnit.MILLISECONDS)
+    @GET("/") RetryableCall<String> getShortLived();
+
+    @GET("/") RetryableCall<String> getLongLived();
   }
 
   @Test public void responseOnTheFirstTry() throws InterruptedException {
@@ -615,6 +662,39 @@ public final class RetryableCallsTest {
     assertThat(callbackExecutorRuns.get()).isEqualTo(1);
   }
 
+  @Test public void callbackOnExecutorDeliversOutcomesInOrder() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .callbackExecutor(new Executor() {
+          @Override public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        })
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    service.getString().enqueue(callback);
+    Runnable failureButCanRetry = tasks.poll(10, SECONDS);
+    // Retry the call while its first outcome is still waiting for the executor.
+    retryableCalls.retryAllCalls();
+    Runnable response = tasks.poll(10, SECONDS);
+    failureButCanRetry.run();
+    assertThat(callback.failureCanRetryCount.get()).isEqualTo(1);
+    assertThat(callback.responseCount.get()).isEqualTo(0);
+    response.run();
+    assertThat(callback.responseCount.get()).isEqualTo(1);
+    assertThat(callback.failureCount.get()).isEqualTo(0);
+  }
+
   @Test public void callbackOnExecutorFailures() throws InterruptedException {
     RetryableCalls retryableCalls = new RetryableCalls();
     MockWebServer server = new MockWebServer();
@@ -949,4 +1029,1642 @@ public final class RetryableCallsTest {
               + "as RetryableCall<Foo> or RetryableCall<? extends Foo>");
     }
   }
+
+  @Test public void maxConcurrentReplaysLimitsCallsInFlight() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxConcurrentReplays(2)
+        .build();
+    final AtomicBoolean serverUp = new AtomicBoolean();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse peek() {
+        return serverUp.get() ? super.peek()
+            : new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START);
+      }
+
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        int running = inFlight.incrementAndGet();
+        maxInFlight.set(Math.max(maxInFlight.get(), running));
+        Thread.sleep(100);
+        inFlight.decrementAndGet();
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    CountingCallback callback = new CountingCallback(6);
+    for (int i = 0; i < 6; i++) {
+      service.getString().enqueue(callback);
+    }
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    serverUp.set(true);
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(callback.responseCount.get()).isEqualTo(6);
+    assertThat(maxInFlight.get()).isEqualTo(2);
+  }
+
+  @Test public void adaptiveConcurrentReplaysConvergesOnBackendCapacity()
+      throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .adaptiveConcurrentReplays(1, 20)
+        .scheduler(scheduler)
+        .backoff(10, 20, MILLISECONDS)
+        .retryOnStatus(503)
+        .build();
+    final int capacity = 3;
+    final AtomicBoolean serverUp = new AtomicBoolean();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger throttled = new AtomicInteger();
+    final AtomicInteger maxServed = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    // A backend that serves up to three requests at a time and turns the rest away.
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse peek() {
+        return serverUp.get() ? super.peek()
+            : new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START);
+      }
+
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        // Also called for each connection that is dropped while the server is down.
+        if (!serverUp.get()) return peek();
+        try {
+          int running = inFlight.incrementAndGet();
+          if (running > capacity) {
+            throttled.incrementAndGet();
+            return new MockResponse().setResponseCode(503);
+          }
+          maxServed.set(Math.max(maxServed.get(), running));
+          Thread.sleep(20);
+          return new MockResponse().setBody("Hi");
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    int calls = 30;
+    CountingCallback callback = new CountingCallback(calls);
+    for (int i = 0; i < calls; i++) {
+      service.getString().enqueue(callback);
+    }
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    serverUp.set(true);
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(30, SECONDS)).isTrue();
+    assertThat(callback.failureCount.get()).isEqualTo(0);
+    // Sending every parked call at once would have had most of them turned away.
+    assertThat(throttled.get()).isLessThan(calls / 3);
+    // But the limit did grow past one at a time.
+    assertThat(maxServed.get()).isAtLeast(2);
+    scheduler.shutdown();
+  }
+
+  @Test public void schedulerRetriesWithBackoff() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 50, MILLISECONDS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    service.getString().enqueue(callback);
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(callback.failureCanRetryCount.get()).isEqualTo(2);
+    assertThat(callback.failureCount.get()).isEqualTo(0);
+    assertThat(server.getRequestCount()).isEqualTo(3);
+    scheduler.shutdown();
+  }
+
+  @Test public void callThatThrowsWhileReplayingDoesNotStrandOthers()
+      throws InterruptedException {
+    final RuntimeException boom = new RuntimeException("boom");
+    final AtomicBoolean thrown = new AtomicBoolean();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .eventListener(new RetryEventListener() {
+          @Override public void callReplayed(RetryableCall<?> call) {
+            if (thrown.compareAndSet(false, true)) throw boom;
+          }
+        })
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+    CountingCallback throwing = new CountingCallback(1) {
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        failureRef.set(t);
+        super.onFailure(call, t);
+      }
+    };
+    CountingCallback other = new CountingCallback(1);
+    service.getString().enqueue(throwing);
+    assertThat(throwing.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    service.getString().enqueue(other);
+    assertThat(other.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    try {
+      retryableCalls.retryAllCalls();
+      fail();
+    } catch (RuntimeException expected) {
+      assertThat(expected).isSameAs(boom);
+    }
+    assertThat(throwing.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(failureRef.get()).isSameAs(boom);
+    assertThat(other.responseLatch.await(10, SECONDS)).isTrue();
+  }
+
+  @Test public void maxAttemptsDeliversFailure() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .maxAttempts(2)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    service.getString().enqueue(callback);
+    assertThat(callback.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(callback.failureCanRetryCount.get()).isEqualTo(1);
+    assertThat(callback.responseCount.get()).isEqualTo(0);
+
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(1, SECONDS)).isFalse();
+    scheduler.shutdown();
+  }
+
+  @Test public void maxParkedCallsEvictsOldest() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxParkedCalls(2, RetryableCalls.OverflowPolicy.EVICT_OLDEST)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    CountingCallback[] callbacks = new CountingCallback[3];
+    for (int i = 0; i < callbacks.length; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+      callbacks[i] = new CountingCallback(1);
+      service.getString().enqueue(callbacks[i]);
+      assertThat(callbacks[i].failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    }
+    assertThat(callbacks[0].failureLatch.await(10, SECONDS)).isTrue();
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    retryableCalls.retryAllCalls();
+    assertThat(callbacks[1].responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(callbacks[2].responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(callbacks[0].responseCount.get()).isEqualTo(0);
+  }
+
+  @Test public void maxParkedCallsRejectsNew() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxParkedCalls(1, RetryableCalls.OverflowPolicy.REJECT_NEW)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    CountingCallback parked = new CountingCallback(1);
+    service.getString().enqueue(parked);
+    assertThat(parked.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CountingCallback rejected = new CountingCallback(1);
+    service.getString().enqueue(rejected);
+    assertThat(rejected.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(rejected.failureCanRetryCount.get()).isEqualTo(0);
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    retryableCalls.retryAllCalls();
+    assertThat(parked.responseLatch.await(10, SECONDS)).isTrue();
+  }
+
+  @Test public void expiredCallIsNotRetried() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .parkedTimeToLive(1, TimeUnit.HOURS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    ShortLivedService service = retrofit.create(ShortLivedService.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    CountingCallback shortLived = new CountingCallback(1);
+    service.getShortLived().enqueue(shortLived);
+    assertThat(shortLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CountingCallback longLived = new CountingCallback(1);
+    service.getLongLived().enqueue(longLived);
+    assertThat(longLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    Thread.sleep(150);
+    server.enqueue(new MockResponse().setBody("Hi"));
+    retryableCalls.retryAllCalls();
+    assertThat(shortLived.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(longLived.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortLived.responseCount.get()).isEqualTo(0);
+    assertThat(server.getRequestCount()).isEqualTo(3);
+  }
+
+  @Test public void callThatExpiresWaitingForReplaySlotIsNotSent() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxConcurrentReplays(1)
+        .build();
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        int count = requests.incrementAndGet();
+        if (count <= 2) {
+          return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+        if (count == 3) {
+          Thread.sleep(300);
+        }
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    ShortLivedService service = retrofit.create(ShortLivedService.class);
+
+    CountingCallback longLived = new CountingCallback(1);
+    service.getLongLived().enqueue(longLived);
+    assertThat(longLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+    CountingCallback shortLived = new CountingCallback(1) {
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        failureRef.set(t);
+        super.onFailure(call, t);
+      }
+    };
+    service.getShortLived().enqueue(shortLived);
+    assertThat(shortLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    // The short-lived call expires while the long-lived one holds the only slot.
+    retryableCalls.retryAllCalls();
+    assertThat(longLived.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortLived.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(failureRef.get()).hasMessageThat().isEqualTo("Parked call expired");
+    assertThat(failureRef.get().getCause()).isInstanceOf(IOException.class);
+    assertThat(requests.get()).isEqualTo(3);
+  }
+
+  @Test public void expiredCallIsFailedWhenAnotherCallParks() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    ShortLivedService service = retrofit.create(ShortLivedService.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    CountingCallback shortLived = new CountingCallback(1);
+    service.getShortLived().enqueue(shortLived);
+    assertThat(shortLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    Thread.sleep(150);
+    CountingCallback longLived = new CountingCallback(1);
+    service.getLongLived().enqueue(longLived);
+    assertThat(longLived.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortLived.failureLatch.await(10, SECONDS)).isTrue();
+  }
+
+  @Test public void retryAnnotationParksStatusCodes() throws Exception {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    AnnotatedService service = retrofit.create(AnnotatedService.class);
+
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setResponseCode(503).setBody("Still down"));
+
+    final AtomicReference<IOException> failureRef = new AtomicReference<>();
+    final AtomicReference<Response<String>> responseRef = new AtomicReference<>();
+    final CountDownLatch failureLatch = new CountDownLatch(1);
+    final CountDownLatch responseLatch = new CountDownLatch(1);
+    service.getWithStatusRetry().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        responseRef.set(response);
+        responseLatch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        failureRef.set(e);
+        failureLatch.countDown();
+      }
+    });
+    assertThat(failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(failureRef.get()).isInstanceOf(RetryableStatusException.class);
+    assertThat(((RetryableStatusException) failureRef.get()).code()).isEqualTo(503);
+
+    // The second attempt is the last one, so its response is delivered as-is.
+    retryableCalls.retryAllCalls();
+    assertThat(responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(responseRef.get().code()).isEqualTo(503);
+    assertThat(responseRef.get().errorBody().string()).isEqualTo("Still down");
+  }
+
+  @Test public void scheduledRetryHonorsRetryAfter() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .retryOnStatus(429, 503)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    long start = System.nanoTime();
+    service.getString().enqueue(callback);
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(System.nanoTime() - start).isAtLeast(MILLISECONDS.toNanos(900));
+    scheduler.shutdown();
+  }
+
+  @Test public void retryAfterParsesSecondsAndDates() {
+    long now = 1_500_000_000_000L;
+    assertThat(RetryableStatusException.parseRetryAfterMillis(
+        Headers.of("Retry-After", "120"), now)).isEqualTo(120_000L);
+    assertThat(RetryableStatusException.parseRetryAfterMillis(
+        Headers.of("Retry-After", "Fri, 14 Jul 2017 02:42:00 GMT"), now)).isEqualTo(120_000L);
+    assertThat(RetryableStatusException.parseRetryAfterMillis(
+        Headers.of("Retry-After", "Fri, 14 Jul 2017 02:00:00 GMT"), now)).isEqualTo(0L);
+    assertThat(RetryableStatusException.parseRetryAfterMillis(
+        Headers.of("Retry-After", "soon"), now)).isEqualTo(-1L);
+    assertThat(RetryableStatusException.parseRetryAfterMillis(Headers.of(), now))
+        .isEqualTo(-1L);
+  }
+
+  @Test public void slowFirstAttemptIsHedged() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .build();
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        if (requests.incrementAndGet() == 1) {
+          Thread.sleep(1000);
+          return new MockResponse().setBody("Slow");
+        }
+        return new MockResponse().setBody("Fast");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    AnnotatedService service = retrofit.create(AnnotatedService.class);
+
+    final AtomicReference<String> bodyRef = new AtomicReference<>();
+    final AtomicInteger responses = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+    service.getHedged().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        responses.incrementAndGet();
+        bodyRef.set(response.body());
+        latch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    assertThat(latch.await(900, MILLISECONDS)).isTrue();
+    assertThat(bodyRef.get()).isEqualTo("Fast");
+    assertThat(requests.get()).isEqualTo(2);
+
+    // The slow copy is canceled and never delivered.
+    Thread.sleep(1200);
+    assertThat(responses.get()).isEqualTo(1);
+    scheduler.shutdown();
+  }
+
+  @Test public void slowAttemptTimesOutAndParks() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .build();
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        if (requests.incrementAndGet() == 1) {
+          Thread.sleep(1000);
+        }
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    AnnotatedService service = retrofit.create(AnnotatedService.class);
+
+    final AtomicReference<IOException> failureRef = new AtomicReference<>();
+    final CountDownLatch responseLatch = new CountDownLatch(1);
+    service.getWithAttemptTimeout().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        responseLatch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        failureRef.set(e);
+      }
+    });
+    assertThat(responseLatch.await(900, MILLISECONDS)).isTrue();
+    assertThat(failureRef.get()).isInstanceOf(InterruptedIOException.class);
+    scheduler.shutdown();
+  }
+
+  @Test public void hungHedgeTimesOut() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .build();
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        int count = requests.incrementAndGet();
+        if (count == 1) {
+          // Fails once the hedge has been sent.
+          Thread.sleep(200);
+          return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+        if (count == 2) {
+          return new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE);
+        }
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    AnnotatedService service = retrofit.create(AnnotatedService.class);
+
+    final AtomicReference<IOException> failureRef = new AtomicReference<>();
+    final CountDownLatch responseLatch = new CountDownLatch(1);
+    service.getHedgedWithAttemptTimeout().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        responseLatch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        failureRef.set(e);
+      }
+    });
+    // The hedge is sent at 100 ms and times out at 600 ms, well before OkHttp's read timeout.
+    assertThat(responseLatch.await(5, SECONDS)).isTrue();
+    assertThat(failureRef.get()).isInstanceOf(InterruptedIOException.class);
+    assertThat(requests.get()).isEqualTo(3);
+    scheduler.shutdown();
+  }
+
+  @Test public void deadlineFailsCallInFlight() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .build();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        Thread.sleep(1000);
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+    final CountDownLatch failureLatch = new CountDownLatch(1);
+    service.getString().enqueue(new RetryableCallback<String>() {
+      @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+        throw new AssertionError();
+      }
+
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        failureRef.set(t);
+        failureLatch.countDown();
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        throw new AssertionError(e);
+      }
+    }, 100, MILLISECONDS);
+    assertThat(failureLatch.await(900, MILLISECONDS)).isTrue();
+    assertThat(failureRef.get()).isInstanceOf(InterruptedIOException.class);
+    scheduler.shutdown();
+  }
+
+  @Test public void deadlineFailsCallWaitingForReplaySlot() throws InterruptedException {
+    deadlineFailsCallWaitingForReplay(false);
+  }
+
+  @Test public void deadlineFailsCoalescedFollower() throws InterruptedException {
+    deadlineFailsCallWaitingForReplay(true);
+  }
+
+  private void deadlineFailsCallWaitingForReplay(boolean coalesce) throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(1, 1, MINUTES)
+        .maxConcurrentReplays(1)
+        .coalesceReplays(coalesce)
+        .build();
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        int count = requests.incrementAndGet();
+        if (count <= 2) {
+          return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+        if (count == 3) {
+          Thread.sleep(1500);
+        }
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    CountingCallback slow = new CountingCallback(1);
+    service.getString().enqueue(slow);
+    assertThat(slow.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+    CountingCallback waiting = new CountingCallback(1) {
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        failureRef.set(t);
+        super.onFailure(call, t);
+      }
+    };
+    service.getString().enqueue(waiting, 500, MILLISECONDS);
+    assertThat(waiting.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    // The slow call takes the only slot, or leads the coalesced replay.
+    retryableCalls.retryAllCalls();
+    assertThat(waiting.failureLatch.await(1, SECONDS)).isTrue();
+    assertThat(failureRef.get()).isInstanceOf(InterruptedIOException.class);
+    assertThat(slow.responseCount.get()).isEqualTo(0);
+    assertThat(slow.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(waiting.responseCount.get()).isEqualTo(0);
+    scheduler.shutdown();
+  }
+
+  @Test public void executeRetriesOnCallingThread() throws Exception {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .backoff(10, 10, MILLISECONDS)
+        .maxAttempts(3)
+        .retryOnStatus(503)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    Response<String> response = service.getString().execute();
+    assertThat(response.body()).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(3);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setResponseCode(503));
+    }
+    // Out of attempts, the last response is returned.
+    assertThat(service.getString().execute().code()).isEqualTo(503);
+    assertThat(server.getRequestCount()).isEqualTo(6);
+
+    server.shutdown();
+    try {
+      service.getString().execute();
+      throw new AssertionError();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void executeWaitsOutOpenCircuitBreakerWithoutUsingAttempts() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(10, 10, MILLISECONDS)
+        .maxAttempts(2)
+        .circuitBreaker(1, 100, MILLISECONDS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    // The failure opens the breaker. The call backs off until it closes, then sends its second
+    // and last attempt.
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    Response<String> response = service.getString().execute();
+    assertThat(response.body()).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    server.shutdown();
+    scheduler.shutdown();
+  }
+
+  @Test public void executeGivesUpAtTimeToLive() throws Exception {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .backoff(1, 1, SECONDS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    ShortLivedService service = retrofit.create(ShortLivedService.class);
+
+    // The call would expire while backing off, so it gives up instead.
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    long startNanos = System.nanoTime();
+    try {
+      service.getShortLived().execute();
+      throw new AssertionError();
+    } catch (IOException expected) {
+    }
+    assertThat(System.nanoTime() - startNanos).isLessThan(SECONDS.toNanos(1));
+    assertThat(server.getRequestCount()).isEqualTo(1);
+    server.shutdown();
+  }
+
+  @Test public void cancelWakesUpExecuteBackingOff() throws Exception {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .backoff(1, 1, MINUTES)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    final RetryableCall<String> call = service.getString();
+    final AtomicReference<Throwable> thrown = new AtomicReference<>();
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          call.execute();
+        } catch (Throwable t) {
+          thrown.set(t);
+        }
+      }
+    };
+    thread.start();
+    server.takeRequest();
+    Thread.sleep(100);
+    call.cancel();
+    thread.join(SECONDS.toMillis(10));
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(thrown.get()).isInstanceOf(IOException.class);
+    server.shutdown();
+  }
+
+  @Test public void eventListenerSeesLifecycle() throws InterruptedException {
+    final Queue<String> events = new ConcurrentLinkedQueue<>();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .eventListener(new RetryEventListener() {
+          @Override public void attemptStart(RetryableCall<?> call, int attempt) {
+            events.add("attemptStart " + attempt);
+          }
+
+          @Override public void attemptEnd(RetryableCall<?> call, int attempt, long tookNanos) {
+            assertThat(tookNanos).isAtLeast(0L);
+            events.add("attemptEnd " + attempt);
+          }
+
+          @Override public void attemptFailed(RetryableCall<?> call, int attempt, Throwable t,
+              long tookNanos) {
+            events.add("attemptFailed " + attempt);
+          }
+
+          @Override public void callParked(RetryableCall<?> call, IOException failure) {
+            events.add("callParked");
+          }
+
+          @Override public void callReplayed(RetryableCall<?> call) {
+            events.add("callReplayed");
+          }
+
+          @Override public void callEnd(RetryableCall<?> call, int attempts,
+              Response<?> response) {
+            events.add("callEnd " + attempts + " " + response.code());
+          }
+
+          @Override public void callCanceled(RetryableCall<?> call) {
+            events.add("callCanceled");
+          }
+        })
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    RetryableCall<String> call = service.getString();
+    call.enqueue(callback);
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    call.cancel();
+    assertThat(events).containsExactly("attemptStart 1", "attemptFailed 1", "callParked",
+        "callReplayed", "attemptStart 2", "attemptEnd 2", "callEnd 2 200", "callCanceled")
+        .inOrder();
+  }
+
+  @Test public void eventListenerSeesClearedCalls() throws InterruptedException {
+    final Queue<String> events = new ConcurrentLinkedQueue<>();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxConcurrentReplays(1)
+        .coalesceReplays(true)
+        .eventListener(new RetryEventListener() {
+          @Override public void callReplayed(RetryableCall<?> call) {
+            events.add("callReplayed");
+          }
+
+          @Override public void callCleared(RetryableCall<?> call) {
+            events.add("callCleared");
+          }
+        })
+        .build();
+    final CountDownLatch respond = new CountDownLatch(1);
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        if (requests.getAndIncrement() < 3) {
+          return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+        respond.await();
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    // One call to fill the replay window, and two identical calls that wait for it together.
+    CountingCallback first = new CountingCallback(1);
+    service.getOther().enqueue(first);
+    assertThat(first.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CountingCallback identical = new CountingCallback(2);
+    service.getString().enqueue(identical);
+    service.getString().enqueue(identical);
+    assertThat(identical.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    retryableCalls.retryAllCalls();
+    retryableCalls.clearCalls();
+    respond.countDown();
+    assertThat(first.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(identical.responseLatch.await(100, MILLISECONDS)).isFalse();
+    assertThat(identical.responseCount.get()).isEqualTo(0);
+    assertThat(events).containsExactly("callReplayed", "callCleared", "callCleared").inOrder();
+  }
+
+  @Test public void eventListenerSeesExecuteThatThrows() throws IOException {
+    final Queue<String> events = new ConcurrentLinkedQueue<>();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .eventListener(new RetryEventListener() {
+          @Override public void attemptStart(RetryableCall<?> call, int attempt) {
+            events.add("attemptStart " + attempt);
+          }
+
+          @Override public void attemptFailed(RetryableCall<?> call, int attempt, Throwable t,
+              long tookNanos) {
+            events.add("attemptFailed " + attempt + " " + t.getMessage());
+          }
+
+          @Override public void callGaveUp(RetryableCall<?> call, Throwable t) {
+            events.add("callGaveUp " + t.getMessage());
+          }
+        })
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new Converter.Factory() {
+          @Override public Converter<ResponseBody, ?> responseBodyConverter(Type type,
+              Annotation[] annotations, Retrofit retrofit) {
+            return new Converter<ResponseBody, Object>() {
+              @Override public Object convert(ResponseBody value) throws IOException {
+                throw new RuntimeException("Broken!");
+              }
+            };
+          }
+        })
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    try {
+      service.getString().execute();
+      fail();
+    } catch (RuntimeException expected) {
+      assertThat(expected).hasMessageThat().isEqualTo("Broken!");
+    }
+    assertThat(events).containsExactly("attemptStart 1", "attemptFailed 1 Broken!",
+        "callGaveUp Broken!").inOrder();
+  }
+
+  @Test public void endpointMetricsRecordAttemptsAndTimeParked() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .recordEndpointMetrics(true)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback callback = new CountingCallback(1);
+    service.getString().enqueue(callback);
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    Thread.sleep(50);
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+
+    List<EndpointMetrics> metrics = retryableCalls.endpointMetrics();
+    assertThat(metrics).hasSize(1);
+    EndpointMetrics endpoint = metrics.get(0);
+    assertThat(endpoint.endpoint()).isEqualTo("GET " + server.url("/"));
+    assertThat(endpoint.firstAttemptLatency().count()).isEqualTo(1L);
+    assertThat(endpoint.replayedAttemptLatency().count()).isEqualTo(1L);
+    assertThat(endpoint.timeParked().count()).isEqualTo(1L);
+    assertThat(endpoint.timeParked().min()).isAtLeast(MILLISECONDS.toNanos(50));
+    assertThat(endpoint.attemptsToSuccess().max()).isEqualTo(2L);
+    assertThat(endpoint.failures()).isEqualTo(0L);
+  }
+
+  @Test public void endpointMetricsKeepServiceMethodsApart() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .recordEndpointMetrics(true)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Retrofit otherRetrofit = retrofit.newBuilder()
+        .baseUrl(server.url("/other/"))
+        .build();
+
+    // Three service methods with the same HTTP method and path.
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    CountingCallback callback = new CountingCallback(3);
+    retrofit.create(Service.class).getString().enqueue(callback);
+    retrofit.create(ShortLivedService.class).getLongLived().enqueue(callback);
+    otherRetrofit.create(Service.class).getString().enqueue(callback);
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+
+    List<EndpointMetrics> metrics = retryableCalls.endpointMetrics();
+    assertThat(metrics).hasSize(3);
+    for (EndpointMetrics endpoint : metrics) {
+      assertThat(endpoint.endpoint()).isEqualTo("GET " + server.url("/"));
+      assertThat(endpoint.firstAttemptLatency().count()).isEqualTo(1L);
+    }
+  }
+
+  @Test public void endpointMetricsRecordClonedCalls() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .recordEndpointMetrics(true)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    CountingCallback callback = new CountingCallback(1);
+    service.getString().clone().enqueue(callback);
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+
+    EndpointMetrics endpoint = retryableCalls.endpointMetrics().get(0);
+    assertThat(endpoint.firstAttemptLatency().count()).isEqualTo(1L);
+    assertThat(endpoint.attemptsToSuccess().max()).isEqualTo(1L);
+  }
+
+  @Test public void parkedCallsSnapshot() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    assertThat(retryableCalls.parkedCallsSnapshot().size()).isEqualTo(0);
+    assertThat(retryableCalls.parkedCallsSnapshot().oldestAgeNanos()).isEqualTo(0L);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+
+    long beforeMillis = System.currentTimeMillis();
+    CountingCallback first = new CountingCallback(1);
+    service.getString().enqueue(first);
+    assertThat(first.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    Thread.sleep(50);
+    CountingCallback second = new CountingCallback(1);
+    service.getString().enqueue(second);
+    assertThat(second.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    ParkedCallsSnapshot snapshot = retryableCalls.parkedCallsSnapshot();
+    assertThat(snapshot.size()).isEqualTo(2);
+    assertThat(snapshot.countsByHost()).containsExactly(server.url("/").host(), 2);
+    assertThat(snapshot.countsByMethod()).containsExactly("GET", 2);
+    assertThat(snapshot.oldestAgeNanos()).isAtLeast(MILLISECONDS.toNanos(50));
+    ParkedCallsSnapshot.Entry oldest = snapshot.calls().get(0);
+    assertThat(oldest.requestLine()).isEqualTo("GET " + server.url("/"));
+    assertThat(oldest.attempts()).isEqualTo(1);
+    assertThat(oldest.firstFailureMillis()).isAtLeast(beforeMillis);
+    assertThat(oldest.ageNanos()).isEqualTo(snapshot.oldestAgeNanos());
+    assertThat(oldest.failure()).isNotNull();
+    assertThat(snapshot.calls().get(1).ageNanos()).isLessThan(oldest.ageNanos());
+
+    retryableCalls.clearCalls();
+    assertThat(retryableCalls.parkedCallsSnapshot().size()).isEqualTo(0);
+    assertThat(snapshot.size()).isEqualTo(2);
+  }
+
+  @Test public void parkedCallsSnapshotAgesFromFirstPark() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+
+    final CountingCallback first = new CountingCallback(2);
+    final RetryableCall<String> firstCall = service.getString();
+    firstCall.enqueue(first);
+    Thread.sleep(50);
+    CountingCallback second = new CountingCallback(1);
+    service.getString().enqueue(second);
+    assertThat(second.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    // Parking the first call again doesn't make it any younger.
+    retryableCalls.retryCalls(new RetryableCalls.Filter() {
+      @Override public boolean matches(RetryableCall<?> call) {
+        return call == firstCall;
+      }
+    });
+    assertThat(first.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    ParkedCallsSnapshot snapshot = retryableCalls.parkedCallsSnapshot();
+    assertThat(snapshot.size()).isEqualTo(2);
+    ParkedCallsSnapshot.Entry oldest = snapshot.calls().get(0);
+    assertThat(oldest.attempts()).isEqualTo(2);
+    assertThat(oldest.ageNanos()).isAtLeast(MILLISECONDS.toNanos(50));
+    assertThat(oldest.ageNanos()).isEqualTo(snapshot.oldestAgeNanos());
+    assertThat(snapshot.calls().get(1).attempts()).isEqualTo(1);
+    assertThat(snapshot.calls().get(1).ageNanos()).isLessThan(oldest.ageNanos());
+    retryableCalls.clearCalls();
+  }
+
+  @Test public void maxParkedCallsEvictsLowestPriority() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .maxParkedCalls(1, RetryableCalls.OverflowPolicy.EVICT_LOWEST_PRIORITY)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    AnnotatedService service = retrofit.create(AnnotatedService.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+    CountingCallback important = new CountingCallback(1);
+    service.getImportant().enqueue(important);
+    assertThat(important.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    // A lower priority call is failed instead of displacing the parked one.
+    CountingCallback unimportant = new CountingCallback(1);
+    service.getUnimportant().enqueue(unimportant);
+    assertThat(unimportant.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(unimportant.failureCanRetryCount.get()).isEqualTo(0);
+    // A higher priority one displaces it.
+    CountingCallback moreImportant = new CountingCallback(1);
+    service.getMoreImportant().enqueue(moreImportant);
+    assertThat(moreImportant.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    assertThat(important.failureLatch.await(10, SECONDS)).isTrue();
+  }
+
+  @Test public void spentRetryBudgetDeliversFailure() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .retryBudget(0, 1, 1, TimeUnit.HOURS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+
+    CountingCallback first = new CountingCallback(1);
+    service.getString().enqueue(first);
+    assertThat(first.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    // The only retry the budget allows fails, and cannot be retried again.
+    retryableCalls.retryAllCalls();
+    assertThat(first.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(first.failureCanRetryCount.get()).isEqualTo(1);
+
+    CountingCallback second = new CountingCallback(1);
+    service.getString().enqueue(second);
+    assertThat(second.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(second.failureCanRetryCount.get()).isEqualTo(0);
+  }
+
+  @Test public void retryBudgetIsTakenWhenCallsPark() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .retryBudget(0.1, 0, 1, TimeUnit.HOURS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    final CountDownLatch failed = new CountDownLatch(20);
+    CountingCallback callback = new CountingCallback(20) {
+      @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+        super.onFailure(call, t);
+        failed.countDown();
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        super.onFailureButCanRetry(call, e);
+        failed.countDown();
+      }
+    };
+    for (int i = 0; i < 20; i++) {
+      service.getString().enqueue(callback);
+    }
+    assertThat(failed.await(10, SECONDS)).isTrue();
+
+    // 20 calls leave room for 2 retries, however many of them fail at once.
+    assertThat(callback.failureCanRetryCount.get()).isAtMost(2);
+    retryableCalls.retryAllCalls();
+    assertThat(callback.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(callback.failureCanRetryCount.get()).isAtMost(2);
+    assertThat(server.getRequestCount()).isAtMost(22);
+  }
+
+  @Test public void openCircuitBreakerParksWithoutSending() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(1, 1, MINUTES)
+        .circuitBreaker(1, 200, MILLISECONDS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    CountingCallback failingCallback = new CountingCallback(1);
+    service.getString().enqueue(failingCallback);
+    assertThat(failingCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    final AtomicReference<IOException> shortCircuitRef = new AtomicReference<>();
+    CountingCallback shortCircuitedCallback = new CountingCallback(1) {
+      @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+        shortCircuitRef.set(e);
+        super.onFailureButCanRetry(call, e);
+      }
+    };
+    service.getString().enqueue(shortCircuitedCallback);
+    assertThat(shortCircuitedCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CircuitBreakerOpenException shortCircuit = (CircuitBreakerOpenException) shortCircuitRef.get();
+    assertThat(shortCircuit.host()).isEqualTo(server.getHostName());
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    Thread.sleep(250);
+
+    CountingCallback probeCallback = new CountingCallback(1);
+    service.getString().enqueue(probeCallback);
+    assertThat(probeCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(failingCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortCircuitedCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(4);
+    scheduler.shutdown();
+  }
+
+  @Test public void circuitBreakerRequiresScheduler() {
+    try {
+      new RetryableCalls.Builder()
+          .circuitBreaker(1, 200, MILLISECONDS)
+          .build();
+      throw new AssertionError();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test public void shortCircuitedCallsProbeOnTheirOwnWithoutUsingRetryBudget() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .backoff(300, 300, MILLISECONDS)
+        .circuitBreaker(1, 200, MILLISECONDS)
+        .retryBudget(0, 0, 1, TimeUnit.HOURS)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    // With no retries in the budget, the failure that opens the breaker is final.
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    CountingCallback failingCallback = new CountingCallback(1);
+    service.getString().enqueue(failingCallback);
+    assertThat(failingCallback.failureLatch.await(10, SECONDS)).isTrue();
+
+    // A call that was never sent doesn't need a retry. It probes the host once its backoff ends,
+    // without another call for the host to wake it.
+    CountingCallback shortCircuitedCallback = new CountingCallback(1);
+    service.getString().enqueue(shortCircuitedCallback);
+    assertThat(shortCircuitedCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortCircuitedCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(shortCircuitedCallback.failureCount.get()).isEqualTo(0);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    server.shutdown();
+    scheduler.shutdown();
+  }
+
+  @Test public void retryCallsOnlyRetriesHost() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    HttpUrl localhostUrl = server.url("/");
+    HttpUrl loopbackUrl = localhostUrl.newBuilder().host("127.0.0.1").build();
+    assertThat(localhostUrl.host()).isNotEqualTo(loopbackUrl.host());
+    Service localhostService = new Retrofit.Builder()
+        .baseUrl(localhostUrl)
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build()
+        .create(Service.class);
+    Service loopbackService = new Retrofit.Builder()
+        .baseUrl(loopbackUrl)
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build()
+        .create(Service.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+
+    CountingCallback localhostCallback = new CountingCallback(1);
+    localhostService.getString().enqueue(localhostCallback);
+    assertThat(localhostCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CountingCallback loopbackCallback = new CountingCallback(1);
+    loopbackService.getString().enqueue(loopbackCallback);
+    assertThat(loopbackCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    retryableCalls.retryCalls(loopbackUrl.host());
+    assertThat(loopbackCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(localhostCallback.responseLatch.await(1, SECONDS)).isFalse();
+
+    retryableCalls.retryAllCalls();
+    assertThat(localhostCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(loopbackCallback.responseCount.get()).isEqualTo(1);
+  }
+
+  private interface GroupedService {
+    @RetryGroup("greetings") @GET("/") RetryableCall<String> getGreeting();
+
+    @GET("/") RetryableCall<String> getString();
+  }
+
+  @Test public void retryGroupOnlyRetriesGroup() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    GroupedService service = retrofit.create(GroupedService.class);
+
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+
+    CountingCallback groupedCallback = new CountingCallback(1);
+    service.getGreeting().enqueue(groupedCallback);
+    assertThat(groupedCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+    CountingCallback ungroupedCallback = new CountingCallback(1);
+    service.getString().enqueue(ungroupedCallback);
+    assertThat(ungroupedCallback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    retryableCalls.retryGroup("greetings");
+    assertThat(groupedCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(ungroupedCallback.responseLatch.await(1, SECONDS)).isFalse();
+    assertThat(server.getRequestCount()).isEqualTo(3);
+  }
+
+  private interface BodyService {
+    @GET("/") RetryableCall<ResponseBody> getBody();
+  }
+
+  @Test public void coalesceReplaysSendsDuplicateRequestOnce() throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .coalesceReplays(true)
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    BodyService service = retrofit.create(BodyService.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+
+    final Queue<String> bodies = new ConcurrentLinkedQueue<>();
+    final CountDownLatch failureCanRetryLatch = new CountDownLatch(3);
+    final CountDownLatch responseLatch = new CountDownLatch(3);
+    RetryableCallback<ResponseBody> callback = new RetryableCallback<ResponseBody>() {
+      @Override public void onResponse(RetryableCall<ResponseBody> call,
+          Response<ResponseBody> response) {
+        try {
+          bodies.add(response.body().string());
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+        responseLatch.countDown();
+      }
+
+      @Override public void onFailure(RetryableCall<ResponseBody> call, Throwable t) {
+        throw new AssertionError(t);
+      }
+
+      @Override public void onFailureButCanRetry(RetryableCall<ResponseBody> call,
+          IOException e) {
+        failureCanRetryLatch.countDown();
+      }
+    };
+    for (int i = 0; i < 3; i++) {
+      service.getBody().enqueue(callback);
+    }
+    assertThat(failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+
+    retryableCalls.retryAllCalls();
+    assertThat(responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(bodies).containsExactly("Hi", "Hi", "Hi");
+    assertThat(server.getRequestCount()).isEqualTo(4);
+  }
+
+  @Test public void coalescedFollowersAreAccountedAsReplayed() throws InterruptedException {
+    final Queue<String> events = new ConcurrentLinkedQueue<>();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .coalesceReplays(true)
+        .eventListener(new RetryEventListener() {
+          @Override public void callReplayed(RetryableCall<?> call) {
+            events.add("callReplayed");
+          }
+
+          @Override public void callEnd(RetryableCall<?> call, int attempts,
+              Response<?> response) {
+            events.add("callEnd " + attempts);
+          }
+        })
+        .build();
+    MockWebServer server = new MockWebServer();
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    }
+    CountingCallback callback = new CountingCallback(3);
+    for (int i = 0; i < 3; i++) {
+      service.getString().enqueue(callback);
+    }
+    assertThat(callback.failureCanRetryLatch.await(10, SECONDS)).isTrue();
+
+    server.enqueue(new MockResponse().setBody("Hi"));
+    retryableCalls.retryAllCalls();
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(4);
+    assertThat(events).containsExactly("callReplayed", "callReplayed", "callReplayed",
+        "callEnd 2", "callEnd 2", "callEnd 2");
+  }
+
+  @Test public void deduplicateInFlightSendsIdenticalRequestOnce()
+      throws InterruptedException {
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .deduplicateInFlight(true)
+        .build();
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch respond = new CountDownLatch(1);
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        requestReceived.countDown();
+        respond.await();
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    CountingCallback callback = new CountingCallback(3);
+    RetryableCall<String> first = service.getString();
+    first.enqueue(callback);
+    assertThat(requestReceived.await(10, SECONDS)).isTrue();
+    RetryableCall<String> second = service.getString();
+    second.enqueue(callback);
+    assertThat(second.isExecuted()).isTrue();
+    respond.countDown();
+    assertThat(callback.responseLatch.await(1, SECONDS)).isFalse();
+    assertThat(callback.responseCount.get()).isEqualTo(2);
+    assertThat(server.getRequestCount()).isEqualTo(1);
+
+    // Once the first request completes, an identical call is sent on its own.
+    service.getString().enqueue(callback);
+    assertThat(callback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void deduplicateInFlightHandsCanceledRequestToFollower()
+      throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RetryableCalls retryableCalls = new RetryableCalls.Builder()
+        .scheduler(scheduler)
+        .deduplicateInFlight(true)
+        .circuitBreaker(1, 1, MINUTES)
+        .build();
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch respond = new CountDownLatch(1);
+    final AtomicInteger requests = new AtomicInteger();
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request)
+          throws InterruptedException {
+        if (requests.getAndIncrement() == 0) {
+          requestReceived.countDown();
+          respond.await();
+        }
+        return new MockResponse().setBody("Hi");
+      }
+    });
+    Retrofit retrofit = new Retrofit.Builder()
+        .baseUrl(server.url("/"))
+        .addCallAdapterFactory(retryableCalls.getFactory())
+        .addConverterFactory(new ToStringConverterFactory())
+        .build();
+    Service service = retrofit.create(Service.class);
+
+    CountingCallback leaderCallback = new CountingCallback(1);
+    RetryableCall<String> leader = service.getString();
+    leader.enqueue(leaderCallback);
+    assertThat(requestReceived.await(10, SECONDS)).isTrue();
+    CountingCallback followerCallback = new CountingCallback(1);
+    service.getString().enqueue(followerCallback);
+    leader.cancel();
+
+    // The follower sends the request itself, and the host's breaker doesn't hear of the cancel.
+    assertThat(followerCallback.responseLatch.await(10, SECONDS)).isTrue();
+    assertThat(followerCallback.failureCanRetryCount.get()).isEqualTo(0);
+    assertThat(leaderCallback.failureLatch.await(10, SECONDS)).isTrue();
+    assertThat(requests.get()).isEqualTo(2);
+    respond.countDown();
+    scheduler.shutdown();
+  }
+
+  static class CountingCallback implements RetryableCallback<String> {
+    final AtomicInteger responseCount = new AtomicInteger();
+    final AtomicInteger failureCount = new AtomicInteger();
+    final AtomicInteger failureCanRetryCount = new AtomicInteger();
+    final CountDownLatch responseLatch;
+    final CountDownLatch failureLatch;
+    final CountDownLatch failureCanRetryLatch;
+
+    CountingCallback(int calls) {
+      responseLatch = new CountDownLatch(calls);
+      failureLatch = new CountDownLatch(calls);
+      failureCanRetryLatch = new CountDownLatch(calls);
+    }
+
+    @Override public void onResponse(RetryableCall<String> call, Response<String> response) {
+      responseCount.incrementAndGet();
+      responseLatch.countDown();
+    }
+
+    @Override public void onFailure(RetryableCall<String> call, Throwable t) {
+      failureCount.incrementAndGet();
+      failureLatch.countDown();
+    }
+
+    @Override public void onFailureButCanRetry(RetryableCall<String> call, IOException e) {
+      failureCanRetryCount.incrementAndGet();
+      failureCanRetryLatch.countDown();
+    }
+  }
 }